@@ -0,0 +1,33 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 自适应并发限制 每个接口分组一个并发上限 分组: seckill 秒杀  browse 其它 GET 请求  write 其它写请求
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "concurrency-limit")
+public class ConcurrencyLimitProperties {
+
+    private boolean enabled = false;
+
+    private Map<String, Group> groups = new LinkedHashMap<>();
+
+    @Data
+    public static class Group {
+        // 初始 最小 最大并发数
+        private int initialLimit = 20;
+        private int minLimit = 4;
+        private int maxLimit = 200;
+        // 响应时间超过多久(毫秒)视为过载
+        private long timeout = 500;
+        // 过载时并发上限乘以这个比例
+        private double backoffRatio = 0.9;
+    }
+}
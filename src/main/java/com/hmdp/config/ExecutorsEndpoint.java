@@ -0,0 +1,35 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.ManagedExecutorRegistry;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+
+/**
+ * 线程池管理端点
+ * GET  /actuator/executors          查看所有线程池
+ * POST /actuator/executors/{name}   {"coreSize": 20, "maxSize": 40} 调整线程数
+ */
+@Component
+@Endpoint(id = "executors")
+public class ExecutorsEndpoint {
+
+    @Resource
+    private ManagedExecutorRegistry managedExecutorRegistry;
+
+    @ReadOperation
+    public Map<String, Map<String, Object>> executors() {
+        return managedExecutorRegistry.describe();
+    }
+
+    @WriteOperation
+    public Map<String, Object> resize(@Selector String name, @Nullable Integer coreSize, @Nullable Integer maxSize) {
+        return managedExecutorRegistry.resize(name, coreSize, maxSize);
+    }
+}
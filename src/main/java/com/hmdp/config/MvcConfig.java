@@ -1,10 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.filter.AdaptiveConcurrencyFilter;
 import com.hmdp.interceptor.LoginInterceptor;
+import com.hmdp.interceptor.RateLimitInterceptor;
 import com.hmdp.interceptor.RefreshTokenInterceptor;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.web.servlet.WebMvcAutoConfiguration;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.cache.annotation.CacheConfig;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -22,6 +29,12 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RateLimitProperties rateLimitProperties;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //登陆拦截器
@@ -36,6 +49,11 @@ public class MvcConfig implements WebMvcConfigurer {
                         , "/voucher/**"
                         , "/user/register"
                 )
+                .order(2);
+        //限流拦截器 在登录拦截之前 按用户限流时需要 Token续命拦截器先取出用户
+        registry
+                .addInterceptor(new RateLimitInterceptor(stringRedisTemplate, rateLimitProperties, meterRegistry))
+                .addPathPatterns("/**")
                 .order(1);
         //Token续命拦截器
         registry
@@ -43,4 +61,16 @@ public class MvcConfig implements WebMvcConfigurer {
                 .addPathPatterns("/**")
                 .order(0);
     }
-}
\ No newline at end of file
+
+    //自适应并发限制 在所有拦截器之前 超出并发上限的请求直接返回 429
+    @Bean
+    @ConditionalOnProperty(name = "concurrency-limit.enabled", havingValue = "true")
+    public FilterRegistrationBean<AdaptiveConcurrencyFilter> adaptiveConcurrencyFilter(
+            ConcurrencyLimitProperties concurrencyLimitProperties) {
+        FilterRegistrationBean<AdaptiveConcurrencyFilter> registration = new FilterRegistrationBean<>(
+                new AdaptiveConcurrencyFilter(concurrencyLimitProperties, meterRegistry));
+        registration.addUrlPatterns("/*");
+        registration.setOrder(Ordered.HIGHEST_PRECEDENCE + 10);
+        return registration;
+    }
+}
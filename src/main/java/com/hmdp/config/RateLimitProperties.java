@@ -0,0 +1,39 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 限流规则 按路径匹配 一个请求可以同时命中多条规则 全部通过才放行
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = false;
+
+    // 本地令牌桶最多缓存的 key 数
+    private long maxLocalKeys = 100000;
+
+    // 可信的反向代理 ip 只有请求来自这些地址时才读取 X-Forwarded-For 否则客户端可以随意伪造 ip
+    private List<String> trustedProxies = new ArrayList<>();
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        // 路径 ant 风格
+        private String pattern;
+        // 限流维度 user: 按登录用户 未登录时按 ip  ip: 按客户端 ip
+        private String key = "user";
+        // 窗口内允许的请求数
+        private int limit;
+        // 窗口长度(毫秒)
+        private long window = 1000;
+    }
+}
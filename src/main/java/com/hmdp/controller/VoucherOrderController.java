@@ -4,10 +4,17 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SeckillWaitingRoom;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -25,10 +32,42 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private SeckillWaitingRoom seckillWaitingRoom;
+
+    // 开启排队后 必须带着排队放行时拿到的购买凭证
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) throws InterruptedException {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "seckill-token", required = false) String token) throws InterruptedException {
+        if (seckillWaitingRoom.isEnabled()
+                && !seckillWaitingRoom.verify(voucherId, UserHolder.getUser().getId(), token)) {
+            return Result.fail("请先排队");
+        }
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    // 排队 重复调用查询排队进度 放行后返回购买凭证
+    @PostMapping("queue/{id}")
+    public Result joinWaitingRoom(@PathVariable("id") Long voucherId) {
+        return seckillWaitingRoom.join(voucherId, UserHolder.getUser().getId());
+    }
+
+    // 查询秒杀订单状态 只读 Redis
+    @GetMapping("status/{orderId}")
+    public Result queryOrderStatus(@PathVariable("orderId") Long orderId) {
+        String status = orderStatusTracker.getStatus(orderId, UserHolder.getUser().getId());
+        return status == null ? Result.fail("订单不存在") : Result.ok(status);
+    }
+
+    // 长轮询 订单落库或失败时通过 Redis 发布订阅唤醒 超时返回 PENDING
+    @GetMapping("status/{orderId}/wait")
+    public DeferredResult<Result> awaitOrderStatus(@PathVariable("orderId") Long orderId,
+                                                   @RequestParam(value = "timeout", defaultValue = "10000") Long timeout) {
+        return orderStatusTracker.await(orderId, UserHolder.getUser().getId(), Math.min(timeout, 30000));
+    }
 }
 
 
@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀已购用户的存储方式 set(默认) bitmap bucket
+     */
+    @TableField(exist = false)
+    private String purchaserEncoding;
+
+    /**
+     * 秒杀库存分片数 大于1时库存拆分到多个分片上
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 生效时间
      */
@@ -0,0 +1,148 @@
+package com.hmdp.filter;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.ConcurrencyLimitProperties;
+import com.hmdp.dto.Result;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 自适应并发限制
+ * 按接口分组统计正在处理的请求数 超过分组的并发上限直接返回 429 不在 Tomcat 中排队
+ * 并发上限按 AIMD 调整: 请求在超时时间内正常返回 上限缓慢增加 大约每处理完一轮上限个请求加一
+ * 响应超时或服务端异常 上限按比例减小 秒杀 浏览 写请求分别限制 秒杀过载不会挤占浏览店铺的线程
+ * 服务端异常包括 5xx 响应 和 WebExceptionAdvice 处理过的异常(响应码 200 通过请求属性标记)
+ */
+@Slf4j
+public class AdaptiveConcurrencyFilter extends OncePerRequestFilter {
+
+    public static final String SECKILL = "seckill";
+    public static final String BROWSE = "browse";
+    public static final String WRITE = "write";
+
+    // 请求处理中出现服务端异常 但响应码不是 5xx 时设置这个请求属性
+    public static final String FAILED_ATTRIBUTE = AdaptiveConcurrencyFilter.class.getName() + ".failed";
+
+    private static final List<String> SECKILL_PATTERNS = Arrays.asList(
+            "/voucher-order/seckill/**", "/voucher-order/queue/**");
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final Map<String, Limiter> limiters = new HashMap<>();
+
+    public AdaptiveConcurrencyFilter(ConcurrencyLimitProperties properties, MeterRegistry meterRegistry) {
+        for (String group : Arrays.asList(SECKILL, BROWSE, WRITE)) {
+            ConcurrencyLimitProperties.Group config =
+                    properties.getGroups().getOrDefault(group, new ConcurrencyLimitProperties.Group());
+            Limiter limiter = new Limiter(config);
+            Gauge.builder("concurrency_limit.limit", limiter, Limiter::getLimit)
+                    .tag("group", group)
+                    .register(meterRegistry);
+            Gauge.builder("concurrency_limit.inflight", limiter, l -> l.inFlight.get())
+                    .tag("group", group)
+                    .register(meterRegistry);
+            limiter.rejected = meterRegistry.counter("concurrency_limit.rejected", "group", group);
+            limiters.put(group, limiter);
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Limiter limiter = limiters.get(group(request));
+        if (!limiter.tryAcquire()) {
+            limiter.rejected.increment();
+            response.setStatus(429);
+            response.setContentType("application/json;charset=UTF-8");
+            response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("服务繁忙 请稍后再试"))
+                    .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = response.getStatus() >= 500 || request.getAttribute(FAILED_ATTRIBUTE) != null;
+        } finally {
+            // 长轮询等异步请求 线程已经释放 响应时间没有意义 只归还并发数
+            if (request.isAsyncStarted()) {
+                limiter.release();
+            } else {
+                limiter.release(System.currentTimeMillis() - start, failed);
+            }
+        }
+    }
+
+    private String group(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String pattern : SECKILL_PATTERNS) {
+            if (pathMatcher.match(pattern, path)) {
+                return SECKILL;
+            }
+        }
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method) ? BROWSE : WRITE;
+    }
+
+    private static class Limiter {
+        private final int minLimit;
+        private final int maxLimit;
+        private final long timeout;
+        private final double backoffRatio;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double limit;
+        private Counter rejected;
+
+        private Limiter(ConcurrencyLimitProperties.Group config) {
+            this.minLimit = config.getMinLimit();
+            this.maxLimit = config.getMaxLimit();
+            this.timeout = config.getTimeout();
+            this.backoffRatio = config.getBackoffRatio();
+            this.limit = config.getInitialLimit();
+        }
+
+        private double getLimit() {
+            return limit;
+        }
+
+        private boolean tryAcquire() {
+            if (inFlight.incrementAndGet() > limit) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            inFlight.decrementAndGet();
+        }
+
+        private void release(long rtt, boolean failed) {
+            int current = inFlight.getAndDecrement();
+            synchronized (this) {
+                if (failed || rtt > timeout) {
+                    // 乘性减小
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                } else if (current * 2 >= limit) {
+                    // 加性增加 只有并发数用到一半以上才增加 空闲时上限不会无限增长
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+        }
+    }
+}
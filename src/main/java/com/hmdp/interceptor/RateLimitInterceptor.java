@@ -0,0 +1,178 @@
+package com.hmdp.interceptor;
+
+import cn.hutool.json.JSONUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 限流拦截器
+ * 1 本地令牌桶 每个 key 一个 超出的请求大部分在本地直接拒绝 不访问 Redis
+ * 2 本地放行的请求 把命中的所有规则放进一次 lua 调用 在 Redis 中按滑动窗口计数 保证多个节点合计不超限
+ * 放行的请求最多一次 Redis 往返 Redis 不可用时只按本地令牌桶限流
+ */
+@Slf4j
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RateLimitProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+    private final Cache<String, TokenBucket> buckets;
+
+    public RateLimitInterceptor(StringRedisTemplate stringRedisTemplate, RateLimitProperties properties,
+                                MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        long maxWindow = properties.getRules().stream()
+                .mapToLong(RateLimitProperties.Rule::getWindow).max().orElse(1000);
+        // 空闲超过一个窗口的桶已经满了 删掉和重新创建没有区别
+        this.buckets = CacheBuilder.newBuilder()
+                .maximumSize(properties.getMaxLocalKeys())
+                .expireAfterAccess(maxWindow, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        List<RateLimitProperties.Rule> rules = properties.getRules();
+        List<String> args = new ArrayList<>();
+        List<Integer> matched = new ArrayList<>();
+        args.add(String.valueOf(System.currentTimeMillis()));
+        args.add("0");
+        for (int i = 0; i < rules.size(); i++) {
+            RateLimitProperties.Rule rule = rules.get(i);
+            if (!pathMatcher.match(rule.getPattern(), path)) {
+                continue;
+            }
+            String key = i + ":" + resolveKey(rule, request);
+            // 1 本地令牌桶
+            if (!bucket(key, rule).tryAcquire()) {
+                return reject(response, rule, "local");
+            }
+            matched.add(i);
+            args.add(key);
+            args.add(String.valueOf(rule.getLimit()));
+            args.add(String.valueOf(rule.getWindow()));
+        }
+        if (matched.isEmpty()) {
+            return true;
+        }
+        // 2 全局滑动窗口 一次检查所有命中的规则
+        args.set(1, String.valueOf(matched.size()));
+        Long result;
+        try {
+            result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, Collections.emptyList(), args.toArray());
+        } catch (Exception e) {
+            log.error("Redis 限流失败, 只按本地令牌桶限流, path = {}", path, e);
+            return true;
+        }
+        if (result != null && result > 0) {
+            return reject(response, rules.get(matched.get(result.intValue() - 1)), "redis");
+        }
+        return true;
+    }
+
+    // user 维度取登录用户 未登录时退化为 ip
+    private String resolveKey(RateLimitProperties.Rule rule, HttpServletRequest request) {
+        if ("user".equals(rule.getKey())) {
+            UserDTO user = UserHolder.getUser();
+            if (user != null) {
+                return "user:" + user.getId();
+            }
+        }
+        return "ip:" + clientIp(request);
+    }
+
+    // 只有直连的是可信代理时才看 X-Forwarded-For 从右往左跳过可信代理 第一个不可信的地址就是客户端
+    // 最左边的地址由客户端自己填写 不能直接使用
+    private String clientIp(HttpServletRequest request) {
+        String remoteAddr = request.getRemoteAddr();
+        List<String> trustedProxies = properties.getTrustedProxies();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (!trustedProxies.contains(remoteAddr) || !StringUtils.hasText(forwarded)) {
+            return remoteAddr;
+        }
+        String[] hops = forwarded.split(",");
+        String ip = remoteAddr;
+        for (int i = hops.length - 1; i >= 0; i--) {
+            ip = hops[i].trim();
+            if (!trustedProxies.contains(ip)) {
+                return ip;
+            }
+        }
+        // 全部是可信代理 取最左边的一跳
+        return ip;
+    }
+
+    private TokenBucket bucket(String key, RateLimitProperties.Rule rule) throws ExecutionException {
+        return buckets.get(key, () -> new TokenBucket(rule.getLimit(), rule.getWindow()));
+    }
+
+    private boolean reject(HttpServletResponse response, RateLimitProperties.Rule rule, String layer) throws Exception {
+        meterRegistry.counter("rate_limit.rejected", "pattern", rule.getPattern(), "layer", layer).increment();
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getOutputStream().write(JSONUtil.toJsonStr(Result.fail("请求太频繁 请稍后再试"))
+                .getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+
+    // 令牌桶 容量为窗口内的请求数上限 一个窗口内匀速补满
+    private static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerMs;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(int limit, long window) {
+            this.capacity = limit;
+            this.tokensPerMs = (double) limit / window;
+            this.tokens = limit;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMs);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+    }
+}
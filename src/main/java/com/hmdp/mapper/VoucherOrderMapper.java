@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,24 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行 insert 一次写入一批秒杀订单
+     * @param orders 订单列表
+     * @return 插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * INSERT IGNORE 写入一条订单 (user_id, voucher_id) 重复时不插入
+     * @param order 订单
+     * @return 插入行数 0 表示重复订单
+     */
+    int insertIgnore(@Param("order") VoucherOrder order);
+
+    /**
+     * INSERT IGNORE 写入一批订单 重复的订单被忽略
+     * @param orders 订单列表
+     * @return 实际插入行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -18,5 +20,35 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
 //    Result createVoucherOrder(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    // 落库一条订单的结果
+    enum CreateResult {
+        // 插入了订单 扣减了库存
+        CREATED,
+        // 用户已经有订单 这条订单没有插入
+        DUPLICATE,
+        // 数据库库存不足 订单被拒绝
+        OUT_OF_STOCK
+    }
+
+    CreateResult createVoucherOrder(VoucherOrder voucherOrder);
+
+    // 按 id.generator 配置生成订单id 补建订单等下单链路以外的地方也用同一个生成器
+    long nextOrderId();
+
+    // 返回实际插入的订单 重复的订单不在其中
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    // 消费一条订单消息 按用户分道处理 失败重试 最终失败进入死信
+    void handleVoucherOrder(VoucherOrder voucherOrder);
+
+    void handleVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    // 一批订单落库 不在内存中重试 返回已经处理完(落库 重复或进入死信)的订单
+    List<VoucherOrder> persistVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    // 停机时排空订单处理 超时没处理完的订单重新投递 返回重新投递的数量
+    int drainVoucherOrders(long timeoutMillis);
+
+    // 取消仍未支付的订单并归还数据库库存 返回本次实际取消的订单
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -8,36 +9,52 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ManagedExecutorRegistry;
+import com.hmdp.utils.OrderDeadLetterHandler;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderLaneExecutor;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.OrderStatusTracker;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRequestCoalescer;
+import com.hmdp.utils.SeckillScripts;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLeaser;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillStockSynchronizer;
 import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SnowflakeIdWorker;
+import com.hmdp.utils.UnpaidOrderCanceller;
 import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.amqp.core.ExchangeTypes;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.LOCK_ORDER_KEY;
 
@@ -62,11 +79,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
 
-    @Resource
-    StringRedisTemplate stringRedisTemplate;
+    // id.generator=snowflake 时使用本地雪花算法生成订单id 不访问 redis
+    @Autowired(required = false)
+    private SnowflakeIdWorker snowflakeIdWorker;
 
     @Resource
-    private RabbitTemplate rabbitTemplate;
+    StringRedisTemplate stringRedisTemplate;
 
     @Resource
     RedissonClient redissonClient;
@@ -74,106 +92,405 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private IVoucherOrderService voucherOrderService; // 自注入代理对象
 
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillStockLeaser seckillStockLeaser;
+
+    @Resource
+    private SeckillRequestCoalescer seckillRequestCoalescer;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    // 订单队列 rabbit / stream 由 seckill.order.queue 决定
+    @Resource
+    private OrderQueue orderQueue;
+
+    // 本地预写日志 开启后订单先落本地磁盘 由后台线程转发到订单队列
+    @Resource
+    private OrderJournal orderJournal;
+
+    // 库存异步回写 开启后下单不再逐条扣减数据库库存
+    @Resource
+    private SeckillStockSynchronizer seckillStockSynchronizer;
+
+    // 是否开启本地库存租约
+    @Value("${seckill.lease.enabled:false}")
+    private boolean leaseEnabled;
+
+    // 一人一单交给 uk_user_voucher 唯一索引 先 INSERT IGNORE 插入成功才扣库存 不再查询 count
+    @Value("${seckill.order.unique-insert:false}")
+    private boolean uniqueInsert;
+
+    // 订单状态的过期时间(秒) stream 队列由脚本入队时同时写入 PENDING
+    @Value("${seckill.order.status.ttl:600}")
+    private long statusTtl;
+
 
     // 加载 lua 脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT = SeckillScripts.withPurchaser("seckill.lua", Long.class);
     }
 
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        //1.执行lua脚本，判断当前用户的购买资格
+        // 0.本地已经标记售罄 直接返回 不再访问 Redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString());
+        // 分片库存的热点券 由客户端选分片
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards > 0) {
+            return seckillVoucherWithShards(voucherId, userId, shards);
+        }
+        if (leaseEnabled) {
+            return seckillVoucherWithLease(voucherId, userId);
+        }
+        // stream 队列由脚本原子入队 需要先生成订单id
+        boolean enqueuedByScript = orderQueue.enqueuedByScript();
+        long orderId = enqueuedByScript ? nextOrderId() : 0L;
+        String orderIdArg = enqueuedByScript ? String.valueOf(orderId) : "";
+        //1.执行lua脚本，判断当前用户的购买资格
+        // 开启请求合并时和其它并发请求一起用一次批量脚本判断
+        Long result = seckillRequestCoalescer.isEnabled()
+                ? seckillRequestCoalescer.execute(voucherId, userId, orderIdArg)
+                : null;
+        if (result == null) {
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), orderIdArg,
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(statusTtl));
+        }
         if (result != 0) {
             // 2.不为0说明没有购买资格
-            return Result.fail(result == 1 ? "库存不足" : "不能重复下单");
+            return seckillFailure(voucherId, result);
         }
 
         // 4.走到这一步说明有购买资格，将订单信息存到消息队列
+        if (enqueuedByScript) {
+            // 脚本中已经入队 PENDING 状态也已经写入
+            return Result.ok(orderId);
+        }
+        return Result.ok(sendVoucherOrder(voucherId, userId));
+    }
+
+    private Result seckillFailure(Long voucherId, long result) {
+        if (result == 1) {
+            // 第一次发现库存不足 打上售罄标记并广播
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("库存不足");
+        }
+        if (result == 3) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (result == 4) {
+            return Result.fail("秒杀已经结束");
+        }
+        if (result == 5) {
+            return Result.fail("优惠券不存在");
+        }
+        return Result.fail("不能重复下单");
+    }
+
+    // 分片库存模式 每次脚本调用只访问一个分片的 key 所有分片都没有库存才算售罄
+    // 分片在不同 slot 上 脚本不能顺带入队 订单由客户端投递
+    private Result seckillVoucherWithShards(Long voucherId, Long userId, int shards) {
+        long result = seckillStockShards.seckill(voucherId, userId, shards);
+        if (result != 0) {
+            return seckillFailure(voucherId, result);
+        }
+        return Result.ok(sendVoucherOrder(voucherId, userId));
+    }
+
+    // 本地库存租约模式 库存从本地计数器扣 大部分请求不会访问 Redis 的库存 key
+    private Result seckillVoucherWithLease(Long voucherId, Long userId) {
+        // 1.本节点上已经买过 直接返回
+        if (seckillStockLeaser.isPurchasedLocally(voucherId, userId)) {
+            return Result.fail("不能重复下单");
+        }
+        // 2.扣本地库存 本地和 Redis 都没有了才算售罄
+        int acquired = seckillStockLeaser.tryAcquire(voucherId);
+        if (acquired == 3) {
+            return Result.fail("秒杀尚未开始");
+        }
+        if (acquired == 4) {
+            return Result.fail("秒杀已经结束");
+        }
+        if (acquired != 0) {
+            // 其它节点手里可能还有租约 只在本地打标记
+            seckillSoldOutRegistry.markSoldOutLocal(voucherId);
+            return Result.fail("库存不足");
+        }
+        // 3.登记已购用户 保证一人一单
+        boolean claimed;
+        try {
+            claimed = seckillStockLeaser.claimPurchaser(voucherId, userId);
+        } catch (RuntimeException e) {
+            seckillStockLeaser.giveBack(voucherId);
+            throw e;
+        }
+        if (!claimed) {
+            seckillStockLeaser.giveBack(voucherId);
+            return Result.fail("不能重复下单");
+        }
+        return Result.ok(sendVoucherOrder(voucherId, userId));
+    }
+
+    @Override
+    public long nextOrderId() {
+        return snowflakeIdWorker != null ? snowflakeIdWorker.nextId("order") : redisIdWorker.nextId("order");
+    }
+
+    private long sendVoucherOrder(Long voucherId, Long userId) {
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
+        long orderId = nextOrderId();
         voucherOrder.setId(orderId);
-        voucherOrder.setUserId(UserHolder.getUser().getId());
+        voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
+        // 订单状态先记为 PENDING 客户端可以按订单id 查询结果 后台攒批写入 不占请求线程
+        orderStatusTracker.pending(voucherOrder);
         //存入消息队列等待异步消费
-        rabbitTemplate.convertAndSend("hmdianping.direct","direct.seckill",voucherOrder);
-        return Result.ok(orderId);
+        if (orderJournal.isEnabled()) {
+            // 先写本地日志 组提交刷盘后返回 不受 MQ 延迟影响
+            orderJournal.append(voucherOrder);
+        } else {
+            orderQueue.send(voucherOrder);
+        }
+        return orderId;
     }
 
-//    @Scheduled(fixedRate = 1)
-    public void scheduledThreadPoolMonitor() {
-        int activeCount = orderProcessingExecutor.getActiveCount();
-        int maxPoolSize = orderProcessingExecutor.getMaximumPoolSize();
-        double utilization = (double) activeCount / maxPoolSize;
+    // 订单处理按 userId 分道 同一用户的订单在同一条道上串行 不同用户并行
+    @Value("${seckill.order.lanes:0}")
+    private int laneCount;
 
-        log.info("[线程池监控] 使用率: {}% 活跃线程: {}/{}",
-                String.format("%.2f", utilization * 100),
-                activeCount,
-                maxPoolSize);
-    }
+    // 每条道的排队上限 满了阻塞 MQ 监听线程
+    @Value("${seckill.order.lane-queue-capacity:10000}")
+    private int laneQueueCapacity;
+
+    private OrderLaneExecutor orderLaneExecutor;
+
+    @Resource
+    private ManagedExecutorRegistry managedExecutorRegistry;
+
+    // 订单处理失败的重试 最多尝试次数 退避时间从 initial 开始翻倍 不超过 max(毫秒)
+    @Value("${seckill.order.retry.max-attempts:3}")
+    private int retryMaxAttempts;
+
+    @Value("${seckill.order.retry.backoff-initial:200}")
+    private long retryBackoffInitial;
 
+    @Value("${seckill.order.retry.backoff-max:5000}")
+    private long retryBackoffMax;
 
+    @Resource
+    private OrderDeadLetterHandler orderDeadLetterHandler;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    // 订单落库后登记超时未支付取消
+    @Resource
+    private UnpaidOrderCanceller unpaidOrderCanceller;
 
-    private final ThreadPoolExecutor orderProcessingExecutor =
-            (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private ScheduledExecutorService orderRetryScheduler;
+    // 等待重试 还没有回到道上的订单
+    private final Map<Long, VoucherOrder> pendingRetries = new ConcurrentHashMap<>();
+    private Counter orderRetryCounter;
+
+    @PostConstruct
+    public void initOrderLanes() {
+        int lanes = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        // 每条道由线程池注册中心创建 导出等待时间和执行时间 分道必须单线程 不允许调整线程数
+        orderLaneExecutor = new OrderLaneExecutor("order-lane", lanes, laneQueueCapacity, managedExecutorRegistry);
+        orderRetryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "order-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        orderRetryCounter = meterRegistry.counter("seckill.order.retry");
+    }
+
+    // 线程池监控 打印每条道的排队深度和使用率
+    @Scheduled(fixedDelayString = "${seckill.order.lanes-monitor-interval:60000}")
+    public void reportOrderLanes() {
+        orderLaneExecutor.report();
+    }
 
 
     @RabbitListener(bindings = @QueueBinding(
             value = @Queue(name = "direct.seckill.queue"),
             key = "direct.seckill",
             exchange = @Exchange(name = "hmdianping.direct", type = ExchangeTypes.DIRECT)
-    ))
+    ), autoStartup = "#{'${seckill.order.queue:rabbit}' == 'rabbit' && '${seckill.order.batch.enabled:false}' != 'true'}")
     public void listenOrderCreate(VoucherOrder voucherOrder) {
-        scheduledThreadPoolMonitor();
-        orderProcessingExecutor.submit(() -> {
+        handleVoucherOrder(voucherOrder);
+    }
+
+    @Override
+    public void handleVoucherOrder(VoucherOrder voucherOrder) {
+        orderLaneExecutor.execute(voucherOrder.getUserId(), new OrderTask(voucherOrder, 0));
+    }
+
+    // 分道上的一个订单任务 关闭时从道上取回没有执行的订单
+    private class OrderTask implements Runnable {
+        private final VoucherOrder voucherOrder;
+        private final int attempt;
+
+        private OrderTask(VoucherOrder voucherOrder, int attempt) {
+            this.voucherOrder = voucherOrder;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public void run() {
+            processVoucherOrder(voucherOrder, attempt);
+        }
+    }
+
+    // 批量消费模式 攒一批订单一次落库 监听器返回后整批 ack
+    @RabbitListener(queues = "direct.seckill.queue",
+            containerFactory = "batchListenerContainerFactory",
+            autoStartup = "#{'${seckill.order.queue:rabbit}' == 'rabbit' && '${seckill.order.batch.enabled:false}' == 'true'}")
+    public void listenOrderCreateBatch(List<VoucherOrder> voucherOrders) {
+        handleVoucherOrderBatch(voucherOrders);
+    }
+
+    // 一批订单一次落库 失败时降级为逐条处理
+    @Override
+    public void handleVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        try {
+            List<VoucherOrder> created = voucherOrderService.createVoucherOrderBatch(voucherOrders);
+            orderStatusTracker.created(created);
+            unpaidOrderCanceller.schedule(created);
+        } catch (Exception e) {
+            // 整批回滚 降级为逐条处理
+            log.error("批量创建订单失败, 降级为逐条处理, size = {}", voucherOrders.size(), e);
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                processVoucherOrder(voucherOrder, 0);
+            }
+        }
+    }
+
+    // 一批订单一次落库 失败时降级为逐条落库 不在内存中重试
+    // 返回已经处理完(落库 重复或进入死信)的订单 出现异常的订单不返回 由调用方留在队列中重新投递
+    @Override
+    public List<VoucherOrder> persistVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        try {
+            List<VoucherOrder> created = voucherOrderService.createVoucherOrderBatch(voucherOrders);
+            orderStatusTracker.created(created);
+            unpaidOrderCanceller.schedule(created);
+            return voucherOrders;
+        } catch (Exception e) {
+            log.error("批量创建订单失败, 降级为逐条处理, size = {}", voucherOrders.size(), e);
+        }
+        List<VoucherOrder> settled = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
             try {
-                handleVoucherOrder(voucherOrder);
+                settleVoucherOrder(voucherOrder);
+                settled.add(voucherOrder);
             } catch (Exception e) {
-                log.error("处理订单异常", e);
+                log.warn("处理订单异常, 等待重新投递, orderId = {}", voucherOrder.getId(), e);
             }
-        });
+        }
+        return settled;
     }
 
     // 添加销毁方法
     @PreDestroy
     public void destroy() {
-        orderProcessingExecutor.shutdown();
+        orderRetryScheduler.shutdownNow();
+        orderLaneExecutor.shutdown();
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 1.获取用户
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 3.获取锁
-        boolean isLock = lock.tryLock();
-        // 4.判断锁是否成功
-        if (!isLock) {
-            // 获取锁失败 返回错误或者重试
-            log.error("不允许重复下单");
-            return;
+    // 停机时由 OrderShutdownCoordinator 调用 此时监听器已经停止 不会再有新订单进入分道
+    // 1 取消等待中的重试 2 等各条道处理完排队的订单 3 超时没处理的订单和等待重试的订单重新发回订单队列
+    @Override
+    public int drainVoucherOrders(long timeoutMillis) {
+        orderRetryScheduler.shutdownNow();
+        List<VoucherOrder> remaining = new ArrayList<>();
+        try {
+            for (Runnable task : orderLaneExecutor.drain(timeoutMillis)) {
+                if (task instanceof OrderTask) {
+                    remaining.add(((OrderTask) task).voucherOrder);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        remaining.addAll(pendingRetries.values());
+        pendingRetries.clear();
+        // 重复的订单由一人一单判断忽略 重新投递不会多扣库存
+        for (VoucherOrder voucherOrder : remaining) {
+            try {
+                if (orderJournal.isEnabled()) {
+                    orderJournal.append(voucherOrder);
+                } else {
+                    orderQueue.send(voucherOrder);
+                }
+            } catch (Exception e) {
+                log.error("停机时重新投递订单失败, order = {}", JSONUtil.toJsonStr(voucherOrder), e);
+            }
+        }
+        return remaining.size();
+    }
+
+    // 处理一条订单 数据库拒绝的订单直接进入死信 异常按指数退避重试 重试次数用完进入死信
+    private void processVoucherOrder(VoucherOrder voucherOrder, int attempt) {
         try {
-            // 创建订单 更新库存 保存订单到数据库
-            voucherOrderService.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
+            settleVoucherOrder(voucherOrder);
+        } catch (Exception e) {
+            if (attempt + 1 >= retryMaxAttempts) {
+                orderDeadLetterHandler.deadLetter(voucherOrder, "重试 " + (attempt + 1) + " 次后仍然失败: " + e, true);
+                return;
+            }
+            long delay = Math.min(retryBackoffMax, retryBackoffInitial << attempt);
+            log.warn("处理订单异常, {}ms 后第 {} 次重试, orderId = {}", delay, attempt + 1, voucherOrder.getId(), e);
+            orderRetryCounter.increment();
+            // 重试回到同一条道上 保持同一用户串行 进入道之前记在 pendingRetries 中 关闭时不会丢
+            pendingRetries.put(voucherOrder.getId(), voucherOrder);
+            orderRetryScheduler.schedule(() -> {
+                orderLaneExecutor.execute(voucherOrder.getUserId(), new OrderTask(voucherOrder, attempt + 1));
+                pendingRetries.remove(voucherOrder.getId());
+            }, delay, TimeUnit.MILLISECONDS);
         }
     }
 
+    // 落库一条订单 数据库拒绝的订单直接进入死信 异常直接抛出 由调用方决定重试
+    private void settleVoucherOrder(VoucherOrder voucherOrder) {
+        // 同一用户的订单只会落在同一条道上串行处理 不再需要 lock:order: 分布式锁
+        // 跨节点的一人一单由 seckill.lua 保证 同一用户只会有一条消息进入队列
+        // 重复投递被不同节点同时处理时 由 tb_voucher_order 的唯一索引 uk_user_voucher 兜底
+        // 创建订单 更新库存 保存订单到数据库
+        CreateResult result = voucherOrderService.createVoucherOrder(voucherOrder);
+        if (result == CreateResult.OUT_OF_STOCK) {
+            // 库存不足 重试也不会成功 数据库已经没有库存 不还回 Redis 库存
+            orderDeadLetterHandler.deadLetter(voucherOrder, "库存不足", false);
+            return;
+        }
+        if (result == CreateResult.DUPLICATE) {
+            // 重复投递或用户已经有订单 这条订单没有落库 不改状态 不设置超时取消
+            return;
+        }
+        orderStatusTracker.created(Collections.singletonList(voucherOrder));
+        unpaidOrderCanceller.schedule(Collections.singletonList(voucherOrder));
+    }
+
 
     // 秒杀优化
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public CreateResult createVoucherOrder(VoucherOrder voucherOrder) {
+        if (uniqueInsert) {
+            return createVoucherOrderByUniqueKey(voucherOrder);
+        }
         // 5 一人一单
         Long userId = voucherOrder.getUserId();
         Long voucherId = voucherOrder.getVoucherId();
@@ -183,21 +500,172 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (count > 0) {
             // 用户已经购买过了
             log.error("用户已经购买过一次");
-            return;
+            return CreateResult.DUPLICATE;
         }
 
         // 6 扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId).gt("stock", 0)
-                .update();
+        boolean success = decrementStock(voucherId, 1);
         if (!success) {
             log.error("库存不足");
-            return;
+            return CreateResult.OUT_OF_STOCK;
         }
 
-        save(voucherOrder);
+        // 7 先查后插之间可能有并发的重复投递 唯一索引 uk_user_voucher 拒绝第二条 回滚刚才的扣减
+        try {
+            save(voucherOrder);
+        } catch (DuplicateKeyException e) {
+            log.error("用户已经购买过一次, orderId = {}", voucherOrder.getId());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return CreateResult.DUPLICATE;
+        }
+        return CreateResult.CREATED;
     }
 
+    // 唯一索引模式 在 createVoucherOrder 的事务内执行
+    private CreateResult createVoucherOrderByUniqueKey(VoucherOrder voucherOrder) {
+        // 1 先插入 重复订单(包括 MQ 重复投递)被唯一索引忽略 直接返回
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if (inserted == 0) {
+            log.error("用户已经购买过一次, orderId = {}", voucherOrder.getId());
+            return CreateResult.DUPLICATE;
+        }
+
+        // 2 确实插入了一行才扣减库存 库存不足时回滚刚插入的订单
+        boolean success = decrementStock(voucherOrder.getVoucherId(), 1);
+        if (!success) {
+            log.error("库存不足");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return CreateResult.OUT_OF_STOCK;
+        }
+        return CreateResult.CREATED;
+    }
+
+    // 批量创建订单 一条多行 insert + 每张券一条扣减库存的 update
+    // 任何一步失败整批回滚 由调用方降级为逐条处理
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (uniqueInsert) {
+            return createVoucherOrderBatchByUniqueKey(voucherOrders);
+        }
+        // 1 批内去重 同一用户同一张券只保留第一条
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>();
+        for (VoucherOrder order : voucherOrders) {
+            unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+        }
+
+        // 2 一人一单 一次查询过滤掉已经下过单的用户
+        Set<Long> userIds = unique.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = unique.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existed = query()
+                .select("user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        for (VoucherOrder order : existed) {
+            if (unique.remove(order.getUserId() + ":" + order.getVoucherId()) != null) {
+                log.error("用户已经购买过一次, userId = {}, voucherId = {}", order.getUserId(), order.getVoucherId());
+            }
+        }
+        if (unique.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<VoucherOrder> orders = new ArrayList<>(unique.values());
+
+        // 3 按券分组 每张券扣减一次库存
+        Map<Long, Long> countByVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, count) -> {
+            boolean success = decrementStock(voucherId, count);
+            if (!success) {
+                throw new IllegalStateException("库存不足, voucherId = " + voucherId + ", count = " + count);
+            }
+        });
+
+        // 4 一条多行 insert 保存订单
+        getBaseMapper().insertBatch(orders);
+        return orders;
+    }
+
+    // 唯一索引模式 按券分组 每张券一条 INSERT IGNORE 按实际插入的行数扣减库存
+    private List<VoucherOrder> createVoucherOrderBatchByUniqueKey(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> ordersByVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+        ordersByVoucher.forEach((voucherId, orders) -> {
+            // 批内重复和已经落库的订单都被唯一索引忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted == 0) {
+                return;
+            }
+            if (inserted < orders.size()) {
+                log.error("忽略重复订单, voucherId = {}, count = {}", voucherId, orders.size() - inserted);
+                // 有订单被忽略时 按订单id 查出实际插入的订单
+                Set<Long> insertedIds = query()
+                        .select("id")
+                        .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                        .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                orders.stream().filter(o -> insertedIds.contains(o.getId())).forEach(created::add);
+            } else {
+                created.addAll(orders);
+            }
+            boolean success = decrementStock(voucherId, inserted);
+            if (!success) {
+                throw new IllegalStateException("库存不足, voucherId = " + voucherId + ", count = " + inserted);
+            }
+        });
+        return created;
+    }
 
+    // 超时未支付取消 锁住仍未支付的订单后一条 update 改为已取消 只有改掉的订单才归还库存 多个节点重复取消时库存只还一次
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1 查询并锁住仍未支付的订单 并发的支付要等本事务结束 查到的订单就是下面改掉的订单
+        List<VoucherOrder> cancelled = query()
+                .select("id", "user_id", "voucher_id")
+                .in("id", orderIds)
+                .eq("status", 1)
+                .last("for update")
+                .list();
+        if (cancelled.isEmpty()) {
+            return cancelled;
+        }
+        // 2 一条 update 批量改状态
+        update()
+                .set("status", 4)
+                .set("update_time", LocalDateTime.now())
+                .in("id", cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .eq("status", 1)
+                .update();
+        // 3 按券归还库存 每张券一条 update
+        Map<Long, Long> countByVoucher = cancelled.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach(this::incrementStock);
+        return cancelled;
+    }
+
+    // 归还数据库库存 开启异步回写时记录负的扣减数量 和扣减一起合并写回
+    private void incrementStock(Long voucherId, long count) {
+        if (seckillStockSynchronizer.isEnabled()) {
+            seckillStockSynchronizer.record(voucherId, -count);
+            return;
+        }
+        seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+    }
+
+    // 扣减数据库库存 开启异步回写时只记录扣减数量 事务提交后由 SeckillStockSynchronizer 定时合并写回
+    // 库存是否充足已经由 Redis 判断过 回写模式下不再用数据库的库存兜底
+    private boolean decrementStock(Long voucherId, long count) {
+        if (seckillStockSynchronizer.isEnabled()) {
+            seckillStockSynchronizer.record(voucherId, count);
+            return true;
+        }
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).ge("stock", count)
+                .update();
+    }
 }
@@ -6,16 +6,27 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.User;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IUserService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_PURCHASER_BUCKET_SIZE;
 import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
@@ -35,6 +46,19 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    // bitmap 最多覆盖的用户id 数 bitmap 最大 bitmap-range / 8 字节 默认 2MB
+    @Value("${seckill.purchaser.bitmap-range:16777216}")
+    private long bitmapRange;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -55,7 +79,71 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 需求1 保存秒杀库存到 Redis (key, val) -> (前缀+优惠券id, 优惠券库存)
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 秒杀时间窗口写入 seckill:meta:{id} 由 seckill.lua 判断 请求不需要再查询数据库
+        saveSeckillWindow(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime());
+        int shards = voucher.getStockShards() == null ? 1 : voucher.getStockShards();
+        if (shards > 1) {
+            // 热点券 库存拆到多个分片上 分片的已购用户固定用 set
+            if (voucher.getPurchaserEncoding() != null && !"set".equals(voucher.getPurchaserEncoding())) {
+                throw new IllegalArgumentException("分片库存不支持的已购用户存储方式: " + voucher.getPurchaserEncoding());
+            }
+            seckillStockShards.save(voucher.getId(), voucher.getStock(), shards,
+                    toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()));
+        } else {
+            // 需求1 保存秒杀库存到 Redis (key, val) -> (前缀+优惠券id, 优惠券库存)
+            // 先写已购用户存储方式 不支持的方式直接抛异常 事务回滚 不会留下库存
+            savePurchaserEncoding(voucher.getId(), voucher.getStock(), voucher.getPurchaserEncoding());
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        }
+        // 库存写入后清除各节点的售罄标记
+        seckillSoldOutRegistry.clear(voucher.getId());
+    }
+
+    // 已购用户的存储方式 记录在 seckill:meta:{id} 的 encoding 字段 不设置时为 set
+    // bitmap: 用户id - base 作为偏移量 SETBIT 用户id 连续时每个用户只占 1 bit
+    //         base 取当前最小的用户id 偏移量超出 range 的用户放到集合 一个很大的用户id 不会让 Redis 分配几百 MB
+    // bucket: 用户id 取模分到多个小 hash 中 每个桶的元素数控制在 ziplist 编码范围内 适合稀疏的用户id
+    private void savePurchaserEncoding(Long voucherId, Integer stock, String encoding) {
+        if (encoding == null || encoding.isEmpty() || "set".equals(encoding)) {
+            return;
+        }
+        Map<String, String> meta = new HashMap<>();
+        if ("bitmap".equals(encoding)) {
+            // Redis bitmap 偏移量上限 2^32
+            if (bitmapRange <= 0 || bitmapRange > (1L << 32)) {
+                throw new IllegalArgumentException("bitmap 范围不合法: " + bitmapRange);
+            }
+            User first = userService.query().select("min(id) as id").one();
+            long base = first == null || first.getId() == null ? 0 : first.getId();
+            meta.put("encoding", encoding);
+            meta.put("base", String.valueOf(base));
+            meta.put("range", String.valueOf(bitmapRange));
+        } else if ("bucket".equals(encoding)) {
+            meta.put("encoding", encoding);
+            // 每个桶平均不超过 SECKILL_PURCHASER_BUCKET_SIZE 个用户
+            int buckets = Math.max(1, (stock + SECKILL_PURCHASER_BUCKET_SIZE - 1) / SECKILL_PURCHASER_BUCKET_SIZE);
+            meta.put("buckets", String.valueOf(buckets));
+        } else {
+            throw new IllegalArgumentException("不支持的已购用户存储方式: " + encoding);
+        }
+        stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+    }
+
+    // begin/end 以毫秒时间戳保存 和调用脚本时传入的 System.currentTimeMillis() 比较
+    private void saveSeckillWindow(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime) {
+        Map<String, String> meta = new HashMap<>();
+        if (beginTime != null) {
+            meta.put("begin", String.valueOf(toMillis(beginTime)));
+        }
+        if (endTime != null) {
+            meta.put("end", String.valueOf(toMillis(endTime)));
+        }
+        if (!meta.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(SECKILL_META_KEY + voucherId, meta);
+        }
+    }
+
+    private static Long toMillis(LocalDateTime time) {
+        return time == null ? null : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
@@ -11,7 +11,7 @@ import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
@@ -22,8 +22,13 @@ import static com.hmdp.utils.RedisConstants.*;
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    // 缓存重建线程池 有界队列 满了拒绝 本次继续返回旧数据
+    private final ExecutorService cacheRebuildExecutor;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, ManagedExecutorRegistry managedExecutorRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRebuildExecutor = managedExecutorRegistry.create(
+                "cache-rebuild", 10, 10, 1000, ManagedExecutorRegistry.ABORT);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
@@ -73,8 +78,6 @@ public class CacheClient {
 
 
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     public <R, ID> R queryWithLoginExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
@@ -103,18 +106,24 @@ public class CacheClient {
         // 6.2 判断是否获取锁成功
         if(isLock){
             // 6.3 成功 开启独立线程 实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 查询数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写入 Redis
-                    this.setWithLogicalExpire(key, r1, time, unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    unlock(lockKey);
-                }
-            });
+            try {
+                cacheRebuildExecutor.submit(() -> {
+                    try {
+                        // 查询数据库
+                        R r1 = dbFallback.apply(id);
+                        // 写入 Redis
+                        this.setWithLogicalExpire(key, r1, time, unit);
+                    }catch (Exception e){
+                        throw new RuntimeException(e);
+                    }finally {
+                        unlock(lockKey);
+                    }
+                });
+            }catch (RejectedExecutionException e){
+                // 重建任务排满了 释放锁 由之后的请求再触发重建
+                log.warn("缓存重建任务被拒绝, key = {}", key);
+                unlock(lockKey);
+            }
         }
         return r;
     }
@@ -0,0 +1,218 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮
+ * 每层 wheelSize 个槽 第一层每个槽 tickMs 毫秒 上一层每个槽是下一层一整圈 超出当前层范围的定时放到上一层
+ * 只有非空的槽放进 DelayQueue 一个线程等待最近到期的槽 不需要每个定时一个线程 也不需要空转
+ * 上层的槽到期后 槽里的定时按剩余时间降级重新放入下层 到了第一层的槽到期时才真正触发
+ * 同一次推进中到期的定时攒成一批交给 expiredHandler
+ */
+@Slf4j
+public class HierarchicalTimingWheel<T> {
+
+    private final int wheelSize;
+    private final Wheel root;
+    private final DelayQueue<Bucket> queue = new DelayQueue<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicInteger size = new AtomicInteger();
+    // 添加时已经到期的定时 由推进线程统一处理
+    private final Queue<T> due = new ConcurrentLinkedQueue<>();
+    private final Consumer<List<T>> expiredHandler;
+    private final int maxBatch;
+    private final Thread reaper;
+    private volatile boolean running = true;
+
+    public HierarchicalTimingWheel(String name, long tickMs, int wheelSize, int maxBatch, Consumer<List<T>> expiredHandler) {
+        this.wheelSize = wheelSize;
+        this.maxBatch = maxBatch;
+        this.expiredHandler = expiredHandler;
+        long now = System.currentTimeMillis();
+        this.root = new Wheel(tickMs, now - now % tickMs);
+        this.reaper = new Thread(this::advanceLoop, name);
+        this.reaper.setDaemon(true);
+        this.reaper.start();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    // 添加一个定时 deadline 为毫秒时间戳
+    public void add(T item, long deadline) {
+        Entry<T> entry = new Entry<>(item, deadline);
+        size.incrementAndGet();
+        lock.readLock().lock();
+        try {
+            if (!root.add(entry)) {
+                due.add(item);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        reaper.interrupt();
+    }
+
+    private void advanceLoop() {
+        List<T> expired = new ArrayList<>();
+        while (running) {
+            try {
+                Bucket bucket = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (bucket != null) {
+                    // 推进时钟 把到期槽里的定时降级到下层 或者收集为到期
+                    lock.writeLock().lock();
+                    try {
+                        while (bucket != null) {
+                            root.advanceClock(bucket.getExpiration());
+                            for (Entry<T> entry : bucket.flush()) {
+                                if (!root.add(entry)) {
+                                    expired.add(entry.item);
+                                }
+                            }
+                            bucket = queue.poll();
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+                for (T item = due.poll(); item != null; item = due.poll()) {
+                    expired.add(item);
+                }
+                // 分批交给处理方
+                for (int from = 0; from < expired.size(); from += maxBatch) {
+                    List<T> batch = new ArrayList<>(expired.subList(from, Math.min(expired.size(), from + maxBatch)));
+                    size.addAndGet(-batch.size());
+                    try {
+                        expiredHandler.accept(batch);
+                    } catch (Exception e) {
+                        log.error("处理到期定时异常, size = {}", batch.size(), e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                expired.clear();
+            }
+        }
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long deadline;
+
+        private Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    // 一个槽 到期时间是槽的起始时间 同一个槽对象会在时间轮转过一圈后复用
+    private class Bucket implements Delayed {
+        private final AtomicLong expiration = new AtomicLong(-1);
+        private List<Entry<T>> entries = new ArrayList<>();
+
+        private synchronized void add(Entry<T> entry) {
+            entries.add(entry);
+        }
+
+        private synchronized List<Entry<T>> flush() {
+            List<Entry<T>> flushed = entries;
+            entries = new ArrayList<>();
+            expiration.set(-1);
+            return flushed;
+        }
+
+        // 槽的到期时间变化了说明进入了新的一圈 需要重新放入 DelayQueue
+        private boolean setExpiration(long value) {
+            return expiration.getAndSet(value) != value;
+        }
+
+        private long getExpiration() {
+            return expiration.get();
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Math.max(0, getExpiration() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(getExpiration(), ((Bucket) o).getExpiration());
+        }
+    }
+
+    // 一层时间轮
+    private class Wheel {
+        private final long tick;
+        private final long interval;
+        private final List<Bucket> buckets;
+        private volatile long currentTime;
+        private volatile Wheel overflow;
+
+        private Wheel(long tick, long startTime) {
+            this.tick = tick;
+            this.interval = tick * wheelSize;
+            this.currentTime = startTime - startTime % tick;
+            this.buckets = new ArrayList<>(wheelSize);
+            for (int i = 0; i < wheelSize; i++) {
+                buckets.add(new Bucket());
+            }
+        }
+
+        // 返回 false 表示已经到期
+        private boolean add(Entry<T> entry) {
+            if (entry.deadline < currentTime + tick) {
+                return false;
+            }
+            if (entry.deadline < currentTime + interval) {
+                long virtualId = entry.deadline / tick;
+                Bucket bucket = buckets.get((int) (virtualId % wheelSize));
+                bucket.add(entry);
+                if (bucket.setExpiration(virtualId * tick)) {
+                    queue.offer(bucket);
+                }
+                return true;
+            }
+            return overflow().add(entry);
+        }
+
+        private Wheel overflow() {
+            if (overflow == null) {
+                synchronized (this) {
+                    if (overflow == null) {
+                        overflow = new Wheel(interval, currentTime);
+                    }
+                }
+            }
+            return overflow;
+        }
+
+        private void advanceClock(long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - time % tick;
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 进程内的订单队列 不依赖 MQ 用于测试和本地开发
+ * 订单直接交给本节点的消费逻辑(分道 + 重试 + 死信) 节点宕机时未处理的订单会丢失
+ */
+@Component
+@ConditionalOnProperty(name = "seckill.order.queue", havingValue = "local")
+public class LocalOrderQueue implements OrderQueue {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Override
+    public boolean enqueuedByScript() {
+        return false;
+    }
+
+    @Override
+    public void send(VoucherOrder voucherOrder) {
+        voucherOrderService.handleVoucherOrder(voucherOrder);
+    }
+}
@@ -0,0 +1,260 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 线程池注册中心
+ * 业务线程池都从这里创建: 有界队列 明确的拒绝策略 线程数可以通过管理端点 /actuator/executors 在运行时调整
+ * 每个线程池导出 排队深度 活跃线程数 线程数 任务等待时间 任务执行时间 拒绝次数
+ * 参数可以在 executor.{name}.* 中覆盖 代码里给的是默认值
+ * 必须单线程的线程池(如订单分道) 用 createSingleThread 创建 指标相同 不允许调整线程数
+ * 外部创建的线程池用 monitor 只登记监控
+ */
+@Slf4j
+@Component
+public class ManagedExecutorRegistry {
+
+    public static final String ABORT = "abort";
+    public static final String CALLER_RUNS = "caller-runs";
+    public static final String DISCARD = "discard";
+    public static final String DISCARD_OLDEST = "discard-oldest";
+    public static final String BLOCK = "block";
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private Environment environment;
+
+    private final Map<String, ThreadPoolExecutor> executors = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> resizable = new ConcurrentHashMap<>();
+
+    // 创建并登记一个线程池
+    public ThreadPoolExecutor create(String name, int coreSize, int maxSize, int queueCapacity, String rejectionPolicy) {
+        String prefix = "executor." + name + ".";
+        coreSize = environment.getProperty(prefix + "core-size", Integer.class, coreSize);
+        maxSize = Math.max(coreSize, environment.getProperty(prefix + "max-size", Integer.class, maxSize));
+        queueCapacity = environment.getProperty(prefix + "queue-capacity", Integer.class, queueCapacity);
+        rejectionPolicy = environment.getProperty(prefix + "rejection-policy", rejectionPolicy);
+
+        ThreadPoolExecutor executor = newTimedExecutor(name, coreSize, maxSize, queueCapacity, rejectionPolicy(rejectionPolicy));
+        register(name, executor, true);
+        log.info("创建线程池 {}, core = {}, max = {}, queue = {}, rejection = {}",
+                name, coreSize, maxSize, queueCapacity, rejectionPolicy);
+        return executor;
+    }
+
+    // 创建并登记一个单线程的线程池 任务按提交顺序串行执行 导出的指标和 create 一样 线程数不允许调整
+    public ThreadPoolExecutor createSingleThread(String name, int queueCapacity, RejectedExecutionHandler policy) {
+        queueCapacity = environment.getProperty("executor." + name + ".queue-capacity", Integer.class, queueCapacity);
+        ThreadPoolExecutor executor = newTimedExecutor(name, 1, 1, queueCapacity, policy);
+        register(name, executor, false);
+        return executor;
+    }
+
+    // 取出 execute 时包装的原始任务 用于关闭时从队列中取回任务
+    public static Runnable unwrap(Runnable task) {
+        return task instanceof TimedTask ? ((TimedTask) task).delegate : task;
+    }
+
+    private ThreadPoolExecutor newTimedExecutor(String name, int coreSize, int maxSize, int queueCapacity,
+                                                RejectedExecutionHandler policy) {
+        Counter rejected = meterRegistry.counter("executor.rejected", "name", name);
+        AtomicInteger threadIndex = new AtomicInteger();
+        return new TimedThreadPoolExecutor(coreSize, maxSize, queueCapacity,
+                r -> {
+                    Thread t = new Thread(r, name + "-" + threadIndex.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, e) -> {
+                    rejected.increment();
+                    policy.rejectedExecution(r, e);
+                },
+                Timer.builder("executor.task.wait").tag("name", name).register(meterRegistry),
+                Timer.builder("executor.task.execution").tag("name", name).register(meterRegistry));
+    }
+
+    // 登记一个已有的线程池 只导出监控 不允许调整线程数
+    public void monitor(String name, ThreadPoolExecutor executor) {
+        register(name, executor, false);
+    }
+
+    private void register(String name, ThreadPoolExecutor executor, boolean canResize) {
+        if (executors.putIfAbsent(name, executor) != null) {
+            throw new IllegalArgumentException("线程池已存在: " + name);
+        }
+        resizable.put(name, canResize);
+        Gauge.builder("executor.queue.depth", executor, e -> e.getQueue().size())
+                .tag("name", name).register(meterRegistry);
+        Gauge.builder("executor.active", executor, ThreadPoolExecutor::getActiveCount)
+                .tag("name", name).register(meterRegistry);
+        Gauge.builder("executor.pool.size", executor, ThreadPoolExecutor::getPoolSize)
+                .tag("name", name).register(meterRegistry);
+        Gauge.builder("executor.pool.core", executor, ThreadPoolExecutor::getCorePoolSize)
+                .tag("name", name).register(meterRegistry);
+        Gauge.builder("executor.pool.max", executor, ThreadPoolExecutor::getMaximumPoolSize)
+                .tag("name", name).register(meterRegistry);
+    }
+
+    public Map<String, Map<String, Object>> describe() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        executors.forEach((name, executor) -> result.put(name, describe(name, executor)));
+        return result;
+    }
+
+    // 运行时调整线程数 为空的参数保持不变
+    public Map<String, Object> resize(String name, Integer coreSize, Integer maxSize) {
+        ThreadPoolExecutor executor = executors.get(name);
+        if (executor == null) {
+            throw new IllegalArgumentException("线程池不存在: " + name);
+        }
+        if (!resizable.get(name)) {
+            throw new IllegalArgumentException("线程池不支持调整: " + name);
+        }
+        synchronized (executor) {
+            int core = coreSize == null ? executor.getCorePoolSize() : coreSize;
+            int max = maxSize == null ? executor.getMaximumPoolSize() : maxSize;
+            if (core <= 0 || max < core) {
+                throw new IllegalArgumentException("线程数不合法, core = " + core + ", max = " + max);
+            }
+            // 先扩大上限再调整核心数 避免中间状态 core > max
+            if (core > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(max);
+                executor.setCorePoolSize(core);
+            } else {
+                executor.setCorePoolSize(core);
+                executor.setMaximumPoolSize(max);
+            }
+        }
+        log.info("调整线程池 {}, core = {}, max = {}", name, executor.getCorePoolSize(), executor.getMaximumPoolSize());
+        return describe(name, executor);
+    }
+
+    private Map<String, Object> describe(String name, ThreadPoolExecutor executor) {
+        Map<String, Object> info = new LinkedHashMap<>();
+        info.put("coreSize", executor.getCorePoolSize());
+        info.put("maxSize", executor.getMaximumPoolSize());
+        info.put("poolSize", executor.getPoolSize());
+        info.put("active", executor.getActiveCount());
+        info.put("queueDepth", executor.getQueue().size());
+        info.put("queueRemaining", executor.getQueue().remainingCapacity());
+        info.put("completed", executor.getCompletedTaskCount());
+        info.put("resizable", resizable.get(name));
+        return info;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executors.forEach((name, executor) -> {
+            if (resizable.get(name)) {
+                executor.shutdown();
+            }
+        });
+    }
+
+    public static RejectedExecutionHandler rejectionPolicy(String name) {
+        switch (name) {
+            case ABORT:
+                return new ThreadPoolExecutor.AbortPolicy();
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            case DISCARD:
+                return new ThreadPoolExecutor.DiscardPolicy();
+            case DISCARD_OLDEST:
+                return new ThreadPoolExecutor.DiscardOldestPolicy();
+            case BLOCK:
+                return new BlockPolicy();
+            default:
+                throw new IllegalArgumentException("未知的拒绝策略: " + name);
+        }
+    }
+
+    // 队列满了阻塞提交线程 把压力传回上游(如 MQ 监听线程) 线程池关闭后直接拒绝
+    public static class BlockPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            try {
+                while (!executor.isShutdown()) {
+                    if (executor.getQueue().offer(r, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RejectedExecutionException("线程池已关闭或提交线程被中断");
+        }
+    }
+
+    // 记录任务在队列中的等待时间和执行时间
+    private static class TimedThreadPoolExecutor extends ThreadPoolExecutor {
+        private final Timer waitTimer;
+        private final Timer executionTimer;
+        private final ThreadLocal<Long> startNanos = new ThreadLocal<>();
+
+        private TimedThreadPoolExecutor(int coreSize, int maxSize, int queueCapacity,
+                                        ThreadFactory threadFactory,
+                                        RejectedExecutionHandler handler, Timer waitTimer, Timer executionTimer) {
+            super(coreSize, maxSize, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory, handler);
+            this.waitTimer = waitTimer;
+            this.executionTimer = executionTimer;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            super.execute(new TimedTask(command));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            long now = System.nanoTime();
+            if (r instanceof TimedTask) {
+                waitTimer.record(now - ((TimedTask) r).enqueueNanos, TimeUnit.NANOSECONDS);
+            }
+            startNanos.set(now);
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            Long start = startNanos.get();
+            if (start != null) {
+                executionTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                startNanos.remove();
+            }
+        }
+    }
+
+    private static class TimedTask implements Runnable {
+        private final Runnable delegate;
+        private final long enqueueNanos = System.nanoTime();
+
+        private TimedTask(Runnable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+    }
+}
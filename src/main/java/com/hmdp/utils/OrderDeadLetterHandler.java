@@ -0,0 +1,127 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+
+/**
+ * 订单死信处理
+ * 重试次数用完或者数据库拒绝(库存不足)的订单写入死信列表 seckill:dlq:order 供人工排查
+ * 同时做补偿: 把用户从已购用户中移除 用户可以重新抢购
+ * 只有数据库里还有这件库存时(异常重试用完 订单没有落库)才把库存还回 Redis
+ * 数据库库存不足拒绝的订单不还 Redis 库存 否则 Redis 会一直卖出数据库拒绝的库存 售罄也被撤销
+ * 无法解析的订单消息只写入死信列表 不知道券和用户 无法补偿 由对账任务修正库存
+ */
+@Slf4j
+@Component
+public class OrderDeadLetterHandler {
+
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    static {
+        RESTOCK_SCRIPT = SeckillScripts.withPurchaser("seckill_restock.lua", Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private Counter deadLetterCounter;
+    private Counter compensateFailedCounter;
+
+    @PostConstruct
+    public void init() {
+        deadLetterCounter = meterRegistry.counter("seckill.order.dead_letter");
+        compensateFailedCounter = meterRegistry.counter("seckill.order.compensate.failed");
+        Gauge.builder("seckill.order.dlq.depth", this, OrderDeadLetterHandler::depth)
+                .description("死信列表中的订单数")
+                .register(meterRegistry);
+    }
+
+    // restock 为 true 表示数据库库存没有扣减 同时把库存还回 Redis
+    public void deadLetter(VoucherOrder voucherOrder, String reason, boolean restock) {
+        deadLetterCounter.increment();
+        log.error("订单进入死信, orderId = {}, userId = {}, voucherId = {}, reason = {}",
+                voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId(), reason);
+        // 1 写入死信列表
+        JSONObject entry = JSONUtil.parseObj(voucherOrder);
+        entry.set("reason", reason);
+        entry.set("deadAt", System.currentTimeMillis());
+        try {
+            stringRedisTemplate.opsForList().rightPush(SECKILL_ORDER_DLQ_KEY, entry.toString());
+        } catch (Exception e) {
+            log.error("写入死信列表失败, order = {}", entry, e);
+        }
+        // 2 补偿 移除已购用户 数据库还有库存时还回 Redis 库存
+        compensate(voucherOrder, restock);
+        // 3 通知客户端下单失败
+        orderStatusTracker.failed(voucherOrder);
+    }
+
+    // 无法解析成订单的消息 原样写入死信列表
+    public void deadLetterMalformed(String payload, String reason) {
+        deadLetterCounter.increment();
+        log.error("无法解析的订单消息进入死信, payload = {}, reason = {}", payload, reason);
+        JSONObject entry = new JSONObject();
+        entry.set("payload", payload);
+        entry.set("reason", reason);
+        entry.set("deadAt", System.currentTimeMillis());
+        try {
+            stringRedisTemplate.opsForList().rightPush(SECKILL_ORDER_DLQ_KEY, entry.toString());
+        } catch (Exception e) {
+            log.error("写入死信列表失败, entry = {}", entry, e);
+        }
+    }
+
+    private void compensate(VoucherOrder voucherOrder, boolean restock) {
+        try {
+            int shards = seckillStockShards.shards(voucherOrder.getVoucherId());
+            if (shards > 0) {
+                seckillStockShards.restock(voucherOrder.getVoucherId(), shards, voucherOrder.getUserId(), restock ? 1 : 0);
+            } else {
+                stringRedisTemplate.execute(RESTOCK_SCRIPT, Collections.emptyList(),
+                        voucherOrder.getVoucherId().toString(), restock ? "1" : "0", voucherOrder.getUserId().toString());
+            }
+            if (restock) {
+                // 库存回到 Redis 清除各节点的售罄标记
+                seckillSoldOutRegistry.clear(voucherOrder.getVoucherId());
+            }
+        } catch (Exception e) {
+            // 补偿失败留给对账任务处理
+            compensateFailedCounter.increment();
+            log.error("订单补偿失败, orderId = {}", voucherOrder.getId(), e);
+        }
+    }
+
+    private double depth() {
+        try {
+            Long size = stringRedisTemplate.opsForList().size(SECKILL_ORDER_DLQ_KEY);
+            return size == null ? 0 : size;
+        } catch (Exception e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,499 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * 秒杀订单本地预写日志
+ * seckillVoucher 先把订单追加到内存映射的日志文件 组提交刷盘后就返回 不再等待 MQ
+ * 后台发送线程把已刷盘的订单转发到订单队列 并记录检查点 重启后从检查点重放未发送的订单
+ * 检查点只推进到订单队列已经确认(或转入兜底列表)的位置 已发出但没确认的订单重启后会重发 由消费端按订单id 去重
+ * 段内所有订单都确认后才删除段文件 删除前先释放内存映射 否则文件被删后映射占用的磁盘空间和地址空间要等 GC 才释放
+ *
+ * 日志按段存储在 {dir}/{seq}.log 每条记录固定 32 字节:
+ * magic(4) + 订单id(8) + 用户id(8) + 优惠券id(8) + crc32(4)
+ * 位置用 long 表示: 高 32 位是段号 低 32 位是段内偏移
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    private static final int RECORD_SIZE = 32;
+    private static final int MAGIC = 0x4F524452;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    // 释放内存映射: Java 9 以后用 Unsafe.invokeCleaner Java 8 没有这个方法 用 DirectBuffer.cleaner()
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Value("${seckill.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${seckill.journal.dir:./data/order-journal}")
+    private String dir;
+
+    // 每个段文件的大小(字节)
+    @Value("${seckill.journal.segment-size:67108864}")
+    private int segmentSize;
+
+    // 组提交刷盘间隔(毫秒)
+    @Value("${seckill.journal.flush-interval:2}")
+    private long flushInterval;
+
+    // 发送线程每批最多转发的订单数
+    @Value("${seckill.journal.ship-batch:500}")
+    private int shipBatch;
+
+    private Path dirPath;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object writeLock = new Object();
+    private Segment writeSegment;
+    private volatile long writtenPosition;
+
+    private final Object flushLock = new Object();
+    private long flushedPosition;
+
+    private volatile long shippedPosition;
+    // 已发出还没确认的订单 key 为记录的起始位置
+    private final ConcurrentSkipListMap<Long, Boolean> unconfirmed = new ConcurrentSkipListMap<>();
+    private FileChannel checkpointChannel;
+    private volatile long savedCheckpoint;
+
+    private volatile boolean running;
+    private Thread flusher;
+    private Thread shipper;
+
+    private static class Segment {
+        private final long seq;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final int size;
+        // 写完的段记录有效数据的末尾 正在写的段为 -1
+        private volatile int end = -1;
+
+        private Segment(long seq, Path path, MappedByteBuffer buffer, int size) {
+            this.seq = seq;
+            this.path = path;
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    private static long position(long seq, int offset) {
+        return seq << 32 | offset;
+    }
+
+    private static long seqOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        dirPath = Paths.get(dir);
+        Files.createDirectories(dirPath);
+        // 1 加载已有的段 没有就新建一个
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(seq, openSegment(seq, path));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, createSegment(0L));
+        }
+        // 2 除了最后一段 其它段都已经写完 扫描出每段数据的末尾
+        for (Segment segment : segments.headMap(segments.lastKey()).values()) {
+            segment.end = scanEnd(segment);
+        }
+        writeSegment = segments.lastEntry().getValue();
+        writtenPosition = position(writeSegment.seq, scanEnd(writeSegment));
+        flushedPosition = writtenPosition;
+
+        // 3 加载检查点 检查点之后的订单都需要重新发送
+        checkpointChannel = new RandomAccessFile(dirPath.resolve(CHECKPOINT_FILE).toFile(), "rw").getChannel();
+        long checkpoint = position(segments.firstKey(), 0);
+        if (checkpointChannel.size() >= 8) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            checkpointChannel.read(buf, 0);
+            buf.flip();
+            checkpoint = Math.max(checkpoint, buf.getLong());
+        }
+        shippedPosition = checkpoint;
+        savedCheckpoint = checkpoint;
+        if (shippedPosition < writtenPosition) {
+            log.info("订单日志中有未发送的订单, 从检查点开始重放, checkpoint = {}:{}",
+                    seqOf(shippedPosition), offsetOf(shippedPosition));
+        }
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "order-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        shipper = new Thread(this::shipLoop, "order-journal-shipper");
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        shipper.interrupt();
+        flusher.interrupt();
+        try {
+            shipper.join(5000);
+            flusher.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            checkpointChannel.close();
+        } catch (IOException e) {
+            log.error("关闭订单日志检查点失败", e);
+        }
+    }
+
+    /**
+     * 追加一条订单 等待组提交刷盘后返回
+     */
+    public void append(VoucherOrder voucherOrder) {
+        long position;
+        synchronized (writeLock) {
+            if (writeSegment.size - offsetOf(writtenPosition) < RECORD_SIZE) {
+                roll();
+            }
+            int offset = offsetOf(writtenPosition);
+            writeRecord(writeSegment.buffer, offset, voucherOrder);
+            position = position(writeSegment.seq, offset + RECORD_SIZE);
+            writtenPosition = position;
+        }
+        awaitFlushed(position);
+    }
+
+    /**
+     * 立即刷盘并保存发送检查点
+     */
+    public void flush() {
+        if (writeSegment == null) {
+            return;
+        }
+        forceWritten();
+        saveCheckpoint();
+    }
+
+    private void awaitFlushed(long position) {
+        synchronized (flushLock) {
+            while (flushedPosition < position) {
+                if (!running) {
+                    throw new IllegalStateException("订单日志已关闭");
+                }
+                try {
+                    flushLock.wait(flushInterval + 1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待订单日志刷盘被中断", e);
+                }
+            }
+        }
+    }
+
+    // 当前段写满 刷盘后切换到新段
+    private void roll() {
+        Segment old = writeSegment;
+        old.buffer.force();
+        old.end = offsetOf(writtenPosition);
+        Segment segment = createSegment(old.seq + 1);
+        segments.put(segment.seq, segment);
+        writeSegment = segment;
+        writtenPosition = position(segment.seq, 0);
+    }
+
+    // 组提交 一次 force 确认这段时间内所有追加的订单
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(flushInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                forceWritten();
+            } catch (Exception e) {
+                log.error("订单日志刷盘失败", e);
+            }
+        }
+    }
+
+    private void forceWritten() {
+        Segment segment;
+        long target;
+        synchronized (writeLock) {
+            segment = writeSegment;
+            target = writtenPosition;
+        }
+        synchronized (flushLock) {
+            if (target <= flushedPosition) {
+                return;
+            }
+        }
+        // 旧段在切换时已经刷过盘 这里只需要刷当前段
+        segment.buffer.force();
+        synchronized (flushLock) {
+            if (target > flushedPosition) {
+                flushedPosition = target;
+            }
+            flushLock.notifyAll();
+        }
+    }
+
+    // 把已经刷盘的订单转发到订单队列 订单确认后推进检查点
+    private void shipLoop() {
+        while (running) {
+            try {
+                if (!shipOnce()) {
+                    // 没有新订单时 确认还会陆续回来 检查点有变化才保存
+                    if (confirmedPosition() != savedCheckpoint) {
+                        saveCheckpoint();
+                    }
+                    Thread.sleep(Math.max(1, flushInterval));
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                log.error("转发订单日志失败, 稍后重试", e);
+                saveCheckpoint();
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        saveCheckpoint();
+    }
+
+    // 转发一批订单 没有可转发的返回 false
+    private boolean shipOnce() {
+        long limit;
+        synchronized (flushLock) {
+            limit = flushedPosition;
+        }
+        long shipped = shippedPosition;
+        if (shipped >= limit) {
+            return false;
+        }
+        Segment segment = segments.get(seqOf(shipped));
+        if (segment == null) {
+            // 检查点所在的段已经删除 跳到下一个段
+            Long next = segments.higherKey(seqOf(shipped));
+            shippedPosition = next == null ? limit : position(next, 0);
+            return true;
+        }
+        int offset = offsetOf(shipped);
+        int end = seqOf(limit) == segment.seq ? offsetOf(limit) : segment.end;
+        if (offset >= end) {
+            // 这一段已经全部发送 进入下一段 等段内订单都确认后再删除
+            shippedPosition = position(segment.seq + 1, 0);
+            saveCheckpoint();
+            return true;
+        }
+        int batchEnd = Math.min(end, offset + shipBatch * RECORD_SIZE);
+        for (int pos = offset; pos < batchEnd; pos += RECORD_SIZE) {
+            VoucherOrder voucherOrder = readRecord(segment.buffer, pos);
+            if (voucherOrder == null) {
+                // 损坏的记录 跳过
+                log.error("订单日志记录校验失败, 跳过, segment = {}, offset = {}", segment.seq, pos);
+            } else {
+                // 先登记再发送 确认回调可能在 send 返回前就执行
+                long start = position(segment.seq, pos);
+                unconfirmed.put(start, Boolean.TRUE);
+                orderQueue.send(voucherOrder, () -> unconfirmed.remove(start));
+            }
+            shippedPosition = position(segment.seq, pos + RECORD_SIZE);
+        }
+        saveCheckpoint();
+        return true;
+    }
+
+    // 检查点位置: 第一条没确认的订单 都确认了就是已发送的位置
+    private long confirmedPosition() {
+        long shipped = shippedPosition;
+        Map.Entry<Long, Boolean> first = unconfirmed.firstEntry();
+        return first == null ? shipped : Math.min(shipped, first.getKey());
+    }
+
+    // 删除检查点之前的段 这些段里的订单都已经确认
+    private void deleteConfirmedSegments(long checkpoint) {
+        for (Segment segment : segments.headMap(seqOf(checkpoint)).values()) {
+            if (segment == writeSegment) {
+                continue;
+            }
+            segments.remove(segment.seq);
+            // 检查点之前的段 发送线程和刷盘线程都不会再访问 可以安全释放映射
+            unmap(segment.buffer);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                log.error("删除订单日志段失败, path = {}", segment.path, e);
+            }
+        }
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            // 释放失败不影响删除 映射等 GC 回收
+            log.warn("释放订单日志段的内存映射失败", e);
+        }
+    }
+
+    private synchronized void saveCheckpoint() {
+        if (checkpointChannel == null || !checkpointChannel.isOpen()) {
+            return;
+        }
+        long checkpoint = confirmedPosition();
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            buf.putLong(checkpoint);
+            buf.flip();
+            checkpointChannel.write(buf, 0);
+            checkpointChannel.force(false);
+        } catch (IOException e) {
+            log.error("保存订单日志检查点失败", e);
+            return;
+        }
+        savedCheckpoint = checkpoint;
+        deleteConfirmedSegments(checkpoint);
+    }
+
+    private Segment createSegment(long seq) {
+        Path path = dirPath.resolve(String.format("%020d", seq) + SEGMENT_SUFFIX);
+        return openSegment(seq, path);
+    }
+
+    private Segment openSegment(long seq, Path path) {
+        // 段大小按记录对齐
+        int size = segmentSize - segmentSize % RECORD_SIZE;
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            if (file.length() > 0) {
+                size = (int) (file.length() - file.length() % RECORD_SIZE);
+            } else {
+                file.setLength(size);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(seq, path, buffer, size);
+        } catch (IOException e) {
+            throw new IllegalStateException("打开订单日志段失败, path = " + path, e);
+        }
+    }
+
+    // 从头扫描到第一条无效记录 即为有效数据的末尾
+    private int scanEnd(Segment segment) {
+        int offset = 0;
+        while (offset + RECORD_SIZE <= segment.size && readRecord(segment.buffer, offset) != null) {
+            offset += RECORD_SIZE;
+        }
+        return offset;
+    }
+
+    private static void writeRecord(MappedByteBuffer buffer, int offset, VoucherOrder voucherOrder) {
+        long id = voucherOrder.getId();
+        long userId = voucherOrder.getUserId();
+        long voucherId = voucherOrder.getVoucherId();
+        buffer.putLong(offset + 4, id);
+        buffer.putLong(offset + 12, userId);
+        buffer.putLong(offset + 20, voucherId);
+        buffer.putInt(offset + 28, crc(id, userId, voucherId));
+        buffer.putInt(offset, MAGIC);
+    }
+
+    private static VoucherOrder readRecord(MappedByteBuffer buffer, int offset) {
+        if (buffer.getInt(offset) != MAGIC) {
+            return null;
+        }
+        long id = buffer.getLong(offset + 4);
+        long userId = buffer.getLong(offset + 12);
+        long voucherId = buffer.getLong(offset + 20);
+        if (buffer.getInt(offset + 28) != crc(id, userId, voucherId)) {
+            return null;
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        return voucherOrder;
+    }
+
+    private static int crc(long id, long userId, long voucherId) {
+        ByteBuffer buf = ByteBuffer.allocate(24);
+        buf.putLong(id).putLong(userId).putLong(voucherId);
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf.array());
+        return (int) crc32.getValue();
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按 key 分道的执行器
+ * 每条道是一个单线程池 同一个 key 永远落在同一条道上 保证串行
+ * 不同 key 分散到不同的道上并行执行
+ * 每条道的队列有界 队列满了阻塞提交线程 不能改为由提交线程执行 否则同一 key 的任务会乱序
+ * 每条道由 ManagedExecutorRegistry 创建 和其它线程池一样导出排队深度 等待时间 执行时间 线程数固定为 1
+ */
+@Slf4j
+public class OrderLaneExecutor {
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+    // 每条道累计的执行耗时 用来计算使用率
+    private final AtomicLong[] busyNanos;
+    private long lastReportNanos = System.nanoTime();
+    private final long[] lastBusyNanos;
+
+    public OrderLaneExecutor(String name, int laneCount, int queueCapacity, ManagedExecutorRegistry registry) {
+        if (laneCount <= 0) {
+            throw new IllegalArgumentException("laneCount must be positive");
+        }
+        this.name = name;
+        this.lanes = new ThreadPoolExecutor[laneCount];
+        this.busyNanos = new AtomicLong[laneCount];
+        this.lastBusyNanos = new long[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = registry.createSingleThread(name + "-" + i, queueCapacity, new ManagedExecutorRegistry.BlockPolicy());
+            busyNanos[i] = new AtomicLong();
+        }
+    }
+
+    public int laneCount() {
+        return lanes.length;
+    }
+
+    public ThreadPoolExecutor lane(int index) {
+        return lanes[index];
+    }
+
+    // 同一个 key 一定返回同一条道
+    public int laneOf(long key) {
+        // 混淆一下高低位 避免连续的用户 id 扎堆
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % lanes.length);
+    }
+
+    public void execute(long key, Runnable task) {
+        int lane = laneOf(key);
+        AtomicLong busy = busyNanos[lane];
+        lanes[lane].execute(new LaneTask(task, busy));
+    }
+
+    // 包一层 关闭时可以从队列中取回调用方提交的原始任务
+    private static class LaneTask implements Runnable {
+        private final Runnable task;
+        private final AtomicLong busy;
+
+        private LaneTask(Runnable task, AtomicLong busy) {
+            this.task = task;
+            this.busy = busy;
+        }
+
+        @Override
+        public void run() {
+            long begin = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                busy.addAndGet(System.nanoTime() - begin);
+            }
+        }
+    }
+
+    // 打印每条道的排队深度和使用率 使用率 = 上次打印以来的执行耗时 / 经过的时间
+    public synchronized void report() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastReportNanos);
+        lastReportNanos = now;
+        StringBuilder sb = new StringBuilder();
+        int totalDepth = 0;
+        int active = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            int depth = lanes[i].getQueue().size();
+            long busy = busyNanos[i].get();
+            double utilization = (double) (busy - lastBusyNanos[i]) / elapsed;
+            lastBusyNanos[i] = busy;
+            totalDepth += depth;
+            active += lanes[i].getActiveCount();
+            sb.append(String.format(" [%d] depth=%d util=%.2f%%", i, depth, Math.min(1.0, utilization) * 100));
+        }
+        log.info("[{}] 道数: {} 活跃: {} 总排队: {}{}", name, lanes.length, active, totalDepth, sb);
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    // 停止接收新任务 等各条道把排队的任务执行完 超时后取出还没开始执行的任务返回
+    // 正在执行的任务不中断 让它自然结束 避免打断进行中的数据库事务
+    public List<Runnable> drain(long timeoutMillis) throws InterruptedException {
+        shutdown();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        List<Runnable> remaining = new ArrayList<>();
+        for (ThreadPoolExecutor lane : lanes) {
+            List<Runnable> queued = new ArrayList<>();
+            lane.getQueue().drainTo(queued);
+            for (Runnable queuedTask : queued) {
+                Runnable r = ManagedExecutorRegistry.unwrap(queuedTask);
+                remaining.add(r instanceof LaneTask ? ((LaneTask) r).task : r);
+            }
+        }
+        return remaining;
+    }
+}
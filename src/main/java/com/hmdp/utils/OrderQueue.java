@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+/**
+ * 秒杀订单队列
+ * 通过 seckill.order.queue 选择实现: rabbit(默认) / stream / local
+ */
+public interface OrderQueue {
+
+    /**
+     * 是否由 seckill.lua 在判断资格的同时原子地入队
+     * 为 true 时调用方需要在执行脚本前生成订单id 并且脚本成功后不用再调用 send
+     */
+    boolean enqueuedByScript();
+
+    /**
+     * 发送订单到队列 等待异步消费
+     */
+    void send(VoucherOrder voucherOrder);
+
+    /**
+     * 发送订单 订单被队列确认或者转入兜底存储后回调 onDurable
+     * 默认实现同步发送 返回即视为已确认; 发送失败抛出异常时不回调
+     */
+    default void send(VoucherOrder voucherOrder, Runnable onDurable) {
+        send(voucherOrder);
+        onDurable.run();
+    }
+
+    /**
+     * 停止消费 等待正在处理的消息处理完 停机时调用
+     */
+    default void stopConsuming(long timeoutMillis) {
+    }
+
+    /**
+     * 等待已发送的订单被确认 超时未确认的转入兜底存储 停机时调用
+     */
+    default void flush(long timeoutMillis) {
+    }
+}
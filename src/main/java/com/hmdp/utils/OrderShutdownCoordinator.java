@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 停机时排空订单
+ * 阶段排在 web 服务器停止之后 此时已经没有新的下单请求 按顺序:
+ * 1 停止订单队列的消费 等正在执行的监听方法返回
+ * 2 等各条道把排队的订单处理完 超时没处理的和等待重试的订单重新投递回订单队列
+ * 3 等待订单消息的 broker 确认 超时的转入兜底列表
+ * 4 订单日志刷盘并保存检查点 库存扣减写回数据库 库存租约还回 Redis
+ * 整个过程不超过 drain-timeout 后面的 @PreDestroy 再关闭各组件
+ */
+@Slf4j
+@Component
+public class OrderShutdownCoordinator implements SmartLifecycle {
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderJournal orderJournal;
+
+    @Resource
+    private SeckillStockSynchronizer seckillStockSynchronizer;
+
+    @Resource
+    private SeckillStockLeaser seckillStockLeaser;
+
+    // 停机排空订单的总时长(毫秒)
+    @Value("${seckill.shutdown.drain-timeout:20000}")
+    private long drainTimeout;
+
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        log.info("开始排空订单, timeout = {}ms", drainTimeout);
+        // 1 停止消费
+        try {
+            orderQueue.stopConsuming(remaining(deadline));
+        } catch (Exception e) {
+            log.error("停止订单消费失败", e);
+        }
+        // 2 排空分道 剩下的重新投递
+        int requeued = voucherOrderService.drainVoucherOrders(remaining(deadline));
+        // 3 等待投递确认
+        try {
+            orderQueue.flush(remaining(deadline));
+        } catch (Exception e) {
+            log.error("等待订单消息确认失败", e);
+        }
+        // 4 持久化的状态
+        try {
+            if (orderJournal.isEnabled()) {
+                orderJournal.flush();
+            }
+        } catch (Exception e) {
+            log.error("订单日志刷盘失败", e);
+        }
+        seckillStockSynchronizer.flush();
+        seckillStockLeaser.releaseAll();
+        log.info("订单排空完成, 重新投递 = {}, 耗时 = {}ms",
+                requeued, drainTimeout - (deadline - System.currentTimeMillis()));
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // 比 web 服务器(Integer.MAX_VALUE - 1)晚停止 比 MQ 连接等基础组件早停止
+    @Override
+    public int getPhase() {
+        return Integer.MAX_VALUE - 2;
+    }
+}
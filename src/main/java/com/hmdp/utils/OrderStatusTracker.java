@@ -0,0 +1,219 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单状态
+ * 下单成功返回订单id 时写入 PENDING 消费者落库后写入 CREATED 进入死信时写入 FAILED
+ * stream 队列由 seckill.lua 入队时在脚本中写入 PENDING 其它下单路径由后台线程攒批写入 不在请求线程上多一次 Redis 调用
+ * 攒批写入前客户端查询会短暂查不到订单 PENDING 用 NX 写入 不会覆盖已经写入的最终状态
+ * 状态保存在 order:status:{orderId} 带过期时间 客户端轮询只读 Redis 不访问数据库
+ * 最终状态通过 order:status 频道广播 唤醒各节点上等待该订单的长轮询请求
+ */
+@Slf4j
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    public static final String PENDING = "PENDING";
+    public static final String CREATED = "CREATED";
+    public static final String FAILED = "FAILED";
+
+    private static final DefaultRedisScript<Long> STATUS_SCRIPT;
+    static {
+        STATUS_SCRIPT = new DefaultRedisScript<>();
+        STATUS_SCRIPT.setLocation(new ClassPathResource("order_status.lua"));
+        STATUS_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 订单状态的过期时间(秒)
+    @Value("${seckill.order.status.ttl:600}")
+    private long ttl;
+
+    // 等待写入 PENDING 的订单上限 Redis 不可用时超出的订单不再记录状态
+    @Value("${seckill.order.status.pending-capacity:100000}")
+    private int pendingCapacity;
+
+    // 每次最多写入的 PENDING 订单数
+    @Value("${seckill.order.status.pending-batch:500}")
+    private int pendingBatch;
+
+    // 本节点上等待订单状态变化的长轮询请求
+    private final Map<Long, Set<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    private BlockingQueue<VoucherOrder> pendingQueue;
+    private Thread pendingWriter;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(ORDER_STATUS_CHANNEL));
+        pendingQueue = new LinkedBlockingQueue<>(pendingCapacity);
+        running = true;
+        pendingWriter = new Thread(this::writePendingLoop, "order-status-pending");
+        pendingWriter.setDaemon(true);
+        pendingWriter.start();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        if (pendingWriter != null) {
+            pendingWriter.interrupt();
+        }
+        // 把剩下的写完
+        List<VoucherOrder> rest = new ArrayList<>();
+        pendingQueue.drainTo(rest);
+        update(PENDING, rest);
+    }
+
+    // 只放进队列 由后台线程写入
+    public void pending(VoucherOrder voucherOrder) {
+        if (!pendingQueue.offer(voucherOrder)) {
+            log.warn("待写入的订单状态过多, 丢弃 PENDING, orderId = {}", voucherOrder.getId());
+        }
+    }
+
+    // 一次取出排队的所有订单(最多 pending-batch 个) 一次脚本写入
+    private void writePendingLoop() {
+        List<VoucherOrder> batch = new ArrayList<>(pendingBatch);
+        while (running) {
+            try {
+                VoucherOrder first = pendingQueue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pendingQueue.drainTo(batch, pendingBatch - 1);
+                update(PENDING, batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    public void created(List<VoucherOrder> voucherOrders) {
+        update(CREATED, voucherOrders);
+    }
+
+    public void failed(VoucherOrder voucherOrder) {
+        update(FAILED, Collections.singletonList(voucherOrder));
+    }
+
+    // 状态写入失败不影响下单 客户端最多看不到状态
+    private void update(String status, List<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(voucherOrders.size() * 2 + 2);
+        args.add(status);
+        args.add(String.valueOf(ttl));
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            args.add(voucherOrder.getId().toString());
+            args.add(voucherOrder.getUserId().toString());
+        }
+        try {
+            stringRedisTemplate.execute(STATUS_SCRIPT, Collections.emptyList(), args.toArray());
+        } catch (Exception e) {
+            log.error("写入订单状态失败, status = {}, size = {}", status, voucherOrders.size(), e);
+        }
+    }
+
+    /**
+     * 查询订单状态 只读 Redis
+     * @return PENDING / CREATED / FAILED 订单不存在或者不属于该用户时返回 null
+     */
+    public String getStatus(Long orderId, Long userId) {
+        String value = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            return null;
+        }
+        int idx = value.indexOf(':');
+        if (idx < 0 || !value.substring(idx + 1).equals(userId.toString())) {
+            return null;
+        }
+        return value.substring(0, idx);
+    }
+
+    /**
+     * 长轮询 订单还是 PENDING 时挂起请求 收到最终状态或超时后返回
+     * 超时返回 PENDING
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeout) {
+        DeferredResult<Result> result = new DeferredResult<>(timeout, Result.ok(PENDING));
+        // 1 先登记 再查询 避免查询和登记之间发布的状态被错过
+        Set<DeferredResult<Result>> set = waiters.computeIfAbsent(orderId, id -> ConcurrentHashMap.newKeySet());
+        set.add(result);
+        result.onCompletion(() -> removeWaiter(orderId, result));
+        // 2 已经是最终状态 或者订单不存在 直接返回
+        String status = getStatus(orderId, userId);
+        if (status == null) {
+            result.setResult(Result.fail("订单不存在"));
+        } else if (!PENDING.equals(status)) {
+            result.setResult(Result.ok(status));
+        }
+        return result;
+    }
+
+    private void removeWaiter(Long orderId, DeferredResult<Result> result) {
+        waiters.computeIfPresent(orderId, (id, set) -> {
+            set.remove(result);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        // 消息格式 orderId:status
+        int idx = body.indexOf(':');
+        if (idx < 0) {
+            return;
+        }
+        Set<DeferredResult<Result>> set = waiters.remove(Long.valueOf(body.substring(0, idx)));
+        if (set == null) {
+            return;
+        }
+        Result status = Result.ok(body.substring(idx + 1));
+        for (DeferredResult<Result> result : set) {
+            result.setResult(status);
+        }
+    }
+}
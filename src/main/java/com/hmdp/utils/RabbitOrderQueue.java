@@ -0,0 +1,273 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.VoucherOrder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_SPILL_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_SPILL_PROCESSING_KEY;
+
+/**
+ * 基于 RabbitMQ 的订单队列 消费者见 VoucherOrderServiceImpl 中的 @RabbitListener
+ * 发送时带上 CorrelationData 异步等待 broker 的发布确认 不阻塞调用方
+ * 未确认的消息数量受窗口限制 nack 或超时的消息重发 重发次数用完后写入 Redis 兜底列表 定时重新投递
+ * 带 onDurable 回调发送的订单 收到 ack 或成功写入兜底列表后才回调 写兜底列表也失败时不回调
+ * 重新投递时用 RPOPLPUSH 把订单移到处理中列表 确认后才从处理中列表删除 节点在投递途中宕机不会丢单
+ * 启动时把处理中列表移回兜底列表 其它节点正在投递的订单可能重发一次 由消费端按订单id 去重
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.order.queue", havingValue = "rabbit", matchIfMissing = true)
+public class RabbitOrderQueue implements OrderQueue {
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RabbitListenerEndpointRegistry rabbitListenerEndpointRegistry;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 未确认消息的窗口大小
+    @Value("${seckill.order.publish.max-outstanding:1000}")
+    private int maxOutstanding;
+
+    // 窗口满时最多等待多久(毫秒)
+    @Value("${seckill.order.publish.window-wait:100}")
+    private long windowWait;
+
+    // 等待确认的超时时间(毫秒)
+    @Value("${seckill.order.publish.confirm-timeout:5000}")
+    private long confirmTimeout;
+
+    // nack 或超时后的最大重发次数
+    @Value("${seckill.order.publish.max-retries:3}")
+    private int maxRetries;
+
+    // 兜底列表每次重新投递的数量
+    @Value("${seckill.order.publish.respill-batch:200}")
+    private int respillBatch;
+
+    private Semaphore window;
+    private final Map<String, Pending> outstanding = new ConcurrentHashMap<>();
+
+    private Timer confirmLatency;
+    private Counter nackCounter;
+    private Counter timeoutCounter;
+    private Counter spillCounter;
+
+    private static class Pending {
+        private final VoucherOrder voucherOrder;
+        private final int attempt;
+        private final Runnable onDurable;
+        private final long sentNanos = System.nanoTime();
+
+        private Pending(VoucherOrder voucherOrder, int attempt, Runnable onDurable) {
+            this.voucherOrder = voucherOrder;
+            this.attempt = attempt;
+            this.onDurable = onDurable;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        window = new Semaphore(maxOutstanding);
+        meterRegistry.gauge("seckill.order.publish.outstanding", outstanding, Map::size);
+        confirmLatency = Timer.builder("seckill.order.publish.confirm.latency")
+                .description("订单消息从发送到收到 broker 确认的耗时")
+                .register(meterRegistry);
+        nackCounter = meterRegistry.counter("seckill.order.publish.nack");
+        timeoutCounter = meterRegistry.counter("seckill.order.publish.timeout");
+        spillCounter = meterRegistry.counter("seckill.order.publish.spilled");
+        recoverProcessing();
+    }
+
+    // 上次没投递完的订单移回兜底列表 由定时任务重新投递
+    private void recoverProcessing() {
+        long recovered = 0;
+        while (stringRedisTemplate.opsForList()
+                .rightPopAndLeftPush(SECKILL_ORDER_SPILL_PROCESSING_KEY, SECKILL_ORDER_SPILL_KEY) != null) {
+            recovered++;
+        }
+        if (recovered > 0) {
+            log.info("处理中的兜底订单已移回兜底列表, count = {}", recovered);
+        }
+    }
+
+    @Override
+    public boolean enqueuedByScript() {
+        return false;
+    }
+
+    @Override
+    public void send(VoucherOrder voucherOrder) {
+        send(voucherOrder, null);
+    }
+
+    @Override
+    public void send(VoucherOrder voucherOrder, Runnable onDurable) {
+        // 1 占用窗口 broker 迟迟不确认时窗口会被占满 此时直接写入兜底列表 不阻塞请求线程
+        boolean acquired;
+        try {
+            acquired = window.tryAcquire(windowWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            spill(voucherOrder, onDurable);
+            return;
+        }
+        // 2 发送 确认结果异步回调
+        publish(voucherOrder, 0, onDurable);
+    }
+
+    // 调用前必须已经占用了一个窗口 确认或放弃时归还
+    private void publish(VoucherOrder voucherOrder, int attempt, Runnable onDurable) {
+        String correlationId = voucherOrder.getId() + ":" + attempt;
+        CorrelationData correlationData = new CorrelationData(correlationId);
+        outstanding.put(correlationId, new Pending(voucherOrder, attempt, onDurable));
+        try {
+            rabbitTemplate.convertAndSend("hmdianping.direct", "direct.seckill", voucherOrder, correlationData);
+        } catch (Exception e) {
+            log.error("发送订单消息失败, orderId = {}", voucherOrder.getId(), e);
+            if (outstanding.remove(correlationId) != null) {
+                window.release();
+                spill(voucherOrder, onDurable);
+            }
+            return;
+        }
+        correlationData.getFuture().addCallback(
+                confirm -> onConfirm(correlationId, confirm != null && confirm.isAck(),
+                        confirm == null ? null : confirm.getReason()),
+                ex -> onConfirm(correlationId, false, ex.getMessage()));
+    }
+
+    private void onConfirm(String correlationId, boolean ack, String reason) {
+        // 已经按超时处理过的确认直接忽略
+        Pending pending = outstanding.remove(correlationId);
+        if (pending == null) {
+            return;
+        }
+        confirmLatency.record(System.nanoTime() - pending.sentNanos, TimeUnit.NANOSECONDS);
+        if (ack) {
+            window.release();
+            durable(pending.onDurable);
+            return;
+        }
+        nackCounter.increment();
+        log.warn("订单消息被 broker 拒绝, orderId = {}, reason = {}", pending.voucherOrder.getId(), reason);
+        retryOrSpill(pending);
+    }
+
+    // 扫描超时未确认的消息 按 nack 处理
+    @Scheduled(fixedDelayString = "${seckill.order.publish.timeout-check-interval:1000}")
+    public void checkConfirmTimeout() {
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeout);
+        outstanding.forEach((correlationId, pending) -> {
+            if (now - pending.sentNanos >= timeoutNanos && outstanding.remove(correlationId, pending)) {
+                timeoutCounter.increment();
+                log.warn("订单消息确认超时, orderId = {}", pending.voucherOrder.getId());
+                retryOrSpill(pending);
+            }
+        });
+    }
+
+    // 重发时继续占用原来的窗口 重发次数用完后写入兜底列表并归还窗口
+    private void retryOrSpill(Pending pending) {
+        if (pending.attempt < maxRetries) {
+            publish(pending.voucherOrder, pending.attempt + 1, pending.onDurable);
+            return;
+        }
+        window.release();
+        spill(pending.voucherOrder, pending.onDurable);
+    }
+
+    private void spill(VoucherOrder voucherOrder, Runnable onDurable) {
+        spillCounter.increment();
+        try {
+            // 左进右出 和 RPOPLPUSH 配合保持先进先出
+            stringRedisTemplate.opsForList().leftPush(SECKILL_ORDER_SPILL_KEY, JSONUtil.toJsonStr(voucherOrder));
+        } catch (Exception e) {
+            // 兜底也失败了 只能记录日志 由对账任务修复 不回调 订单日志会保留这条订单
+            log.error("订单消息写入兜底列表失败, order = {}", JSONUtil.toJsonStr(voucherOrder), e);
+            return;
+        }
+        durable(onDurable);
+    }
+
+    private static void durable(Runnable onDurable) {
+        if (onDurable == null) {
+            return;
+        }
+        try {
+            onDurable.run();
+        } catch (Exception e) {
+            log.error("订单确认回调异常", e);
+        }
+    }
+
+    // 停止所有监听容器 容器会等正在执行的监听方法返回
+    @Override
+    public void stopConsuming(long timeoutMillis) {
+        rabbitListenerEndpointRegistry.stop();
+    }
+
+    // 等待未确认的消息 超时后转入兜底列表 由其它节点重新投递
+    @Override
+    public void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!outstanding.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        outstanding.forEach((correlationId, pending) -> {
+            if (outstanding.remove(correlationId, pending)) {
+                window.release();
+                spill(pending.voucherOrder, pending.onDurable);
+            }
+        });
+    }
+
+    // 定时把兜底列表中的订单重新投递
+    // 订单先原子地移到处理中列表 收到 ack 或重新写入兜底列表后才删除 投递途中宕机 重启后从处理中列表恢复
+    @Scheduled(fixedDelayString = "${seckill.order.publish.respill-interval:5000}")
+    public void redeliverSpilled() {
+        for (int i = 0; i < respillBatch && window.availablePermits() > 0; i++) {
+            String json = stringRedisTemplate.opsForList()
+                    .rightPopAndLeftPush(SECKILL_ORDER_SPILL_KEY, SECKILL_ORDER_SPILL_PROCESSING_KEY);
+            if (json == null) {
+                return;
+            }
+            send(JSONUtil.toBean(json, VoucherOrder.class),
+                    () -> stringRedisTemplate.opsForList().remove(SECKILL_ORDER_SPILL_PROCESSING_KEY, 1, json));
+        }
+    }
+}
@@ -19,6 +19,26 @@ public class RedisConstants {
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final int SECKILL_PURCHASER_BUCKET_SIZE = 100;
+    public static final String SECKILL_SHARD_KEY = "seckill:shard:";
+    public static final int SECKILL_MAX_STOCK_SHARDS = 64;
+    public static final String SECKILL_STOCK_SYNCED_KEY = "seckill:synced:";
+    public static final String SECKILL_RECONCILE_CURSOR_KEY = "seckill:reconcile:cursor";
+    public static final String SECKILL_ORDER_STREAM = "streams.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    // 和 seckill.lua / seckill_batch.lua 中 XADD 的 MAXLEN 保持一致
+    public static final long SECKILL_ORDER_STREAM_MAXLEN = 1000000L;
+    public static final String SECKILL_ORDER_SPILL_KEY = "seckill:spill:order";
+    public static final String SECKILL_ORDER_SPILL_PROCESSING_KEY = "seckill:spill:order:processing";
+    public static final String SECKILL_ORDER_DLQ_KEY = "seckill:dlq:order";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String SECKILL_WAITING_ACTIVE_KEY = "seckill:waiting:active";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
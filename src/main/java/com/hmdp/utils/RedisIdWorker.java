@@ -1,13 +1,23 @@
 package com.hmdp.utils;
 
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
 @Component
 public class RedisIdWorker {
     // todo 面试 生成全局唯一id
@@ -16,6 +26,7 @@ public class RedisIdWorker {
     第一位为 符号位 0
     然后31位 为时间戳
     最后32bit 为自增长的序列号 表示当天的数据量
+    序列号限制在 2^31 以内 最高位留给 SnowflakeIdWorker 做标志 两种生成器的 id 不会冲突
     使用 redis 实现全局性
     long count = stringRedisTemplate.opsForValue()
                     .increment("icr:" + keyPrefix + ":" + date);
@@ -23,37 +34,194 @@ public class RedisIdWorker {
 
     即每天一个 redis key
 
-
+    号段模式:
+    每个节点用一次 INCRBY 从同一个 key 上取一段序列号 (end - step, end] 在本地用 AtomicLong 发号
+    当前号段用掉 80% 时异步预取下一段 用完后直接切换 发号基本不再访问 redis
+    和 INCR 共用同一个 key 所以两种模式生成的 id 不会重复 64 位布局也不变
      */
 
 
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    // 序列号上限 低 32 位的最高位是雪花 id 的标志 计数器不能用到
+    private static final long MAX_COUNT = (1L << 31) - 1;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
     private StringRedisTemplate stringRedisTemplate;
 
+    // 是否开启号段模式
+    @Value("${id.segment.enabled:false}")
+    private boolean segmentEnabled;
+
+    // 每个号段的长度
+    @Value("${id.segment.step:1000}")
+    private long step;
+
+    // 当前号段用掉多少比例时预取下一段
+    @Value("${id.segment.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    // 缓存当天的日期字符串 不用每次都格式化
+    private volatile DayKey dayKey = new DayKey(-1, null);
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
     // 1 bit 符号  +  31 bit 时间戳  +  32 bit 序列号
     public long nextId(String keyPrefix){
+        return segmentEnabled ? nextIdFromSegment(keyPrefix) : nextIdFromRedis(keyPrefix);
+    }
+
+    // 每个 id 一次 INCR
+    public long nextIdFromRedis(String keyPrefix){
         // 1 生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2 生成序列号
         // 2.1 获取当前日期 精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = dateOf(Math.floorDiv(nowSecond, SECONDS_PER_DAY));
         // 2.2 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = checkCount(keyPrefix, stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date));
 
 
         // 3 拼接并返回
         return timestamp << COUNT_BITS | count;
     }
 
+    // 号段模式 序列号从本地号段中取
+    public long nextIdFromSegment(String keyPrefix){
+        // 1 生成时间戳
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+
+        // 2 从当天的号段中取序列号
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        long count = checkCount(keyPrefix, buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(day));
+
+        // 3 拼接并返回
+        return timestamp << COUNT_BITS | count;
+    }
+
+    // 当天的序列号用完时拒绝生成 id 不能溢出到雪花 id 的标志位
+    private static long checkCount(String keyPrefix, long count) {
+        if (count > MAX_COUNT) {
+            throw new IllegalStateException("当天的序列号已用完, keyPrefix = " + keyPrefix + ", count = " + count);
+        }
+        return count;
+    }
+
+    private String dateOf(long epochDay) {
+        DayKey key = dayKey;
+        if (key.epochDay != epochDay) {
+            key = new DayKey(epochDay, LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER));
+            dayKey = key;
+        }
+        return key.date;
+    }
+
+    private static class DayKey {
+        private final long epochDay;
+        private final String date;
+
+        private DayKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    // 号段 可用的序列号为 (max - step, max]
+    private static class Segment {
+        private final long day;
+        private final long start;
+        private final long max;
+        private final AtomicLong cursor;
+
+        private Segment(long day, long max, long step) {
+            this.day = day;
+            this.start = max - step;
+            this.max = max;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    // 双缓冲 current 正在使用 next 为预取好的下一段
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean();
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment == null || segment.day != day) {
+                    // 第一次使用或者跨天 切换到当天的号段
+                    switchSegment(segment, day);
+                    continue;
+                }
+                long count = segment.cursor.incrementAndGet();
+                if (count <= segment.max) {
+                    if (count - segment.start >= (long) (step * prefetchRatio)) {
+                        prefetch(day);
+                    }
+                    return count;
+                }
+                // 当前号段用完 切换到下一段
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                // 其它线程已经切换过了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            current = prefetched != null && prefetched.day == day ? prefetched : load(day);
+        }
+
+        private void prefetch(long day) {
+            if (next != null || !loading.compareAndSet(false, true)) {
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try {
+                    Segment segment = load(day);
+                    synchronized (this) {
+                        if (next == null) {
+                            next = segment;
+                        }
+                    }
+                } catch (Exception e) {
+                    log.error("预取号段失败, keyPrefix = {}", keyPrefix, e);
+                } finally {
+                    loading.set(false);
+                }
+            });
+        }
+
+        private Segment load(long day) {
+            Long max = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + dateOf(day), step);
+            return new Segment(day, max, step);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,322 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_MAXLEN;
+
+/**
+ * 基于 Redis Stream 的订单队列
+ * seckill.lua 判断资格成功后直接 xadd 到 streams.orders 没有脚本和 MQ 之间的那一跳
+ * 消费者组 g1 批量 XREADGROUP 读取 处理完后 XACK
+ * 启动时先把自己 pending-list 中未确认的消息处理完 再读新消息
+ * 只确认已经落库 重复或进入死信的订单 落库出错的订单不确认 留在 pending-list 中
+ * 定时 XCLAIM 空闲太久的 pending 消息(消费者宕机或改名后留下的 以及自己没处理成功的) 转到自己名下重新处理
+ * 投递次数超过 max-deliveries 的消息进入死信
+ * 无法解析的消息确认后写入死信列表 不会一直留在 pending-list
+ * XADD 时带 MAXLEN ~ 近似裁剪 stream 长度有上限
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "seckill.order.queue", havingValue = "stream")
+public class RedisStreamOrderQueue implements OrderQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderDeadLetterHandler orderDeadLetterHandler;
+
+    // 每次最多读取的消息数
+    @Value("${seckill.order.stream.batch-size:100}")
+    private int batchSize;
+
+    // 没有消息时阻塞等待的时间(毫秒)
+    @Value("${seckill.order.stream.block:2000}")
+    private long block;
+
+    // 消费者名称 重启后保持不变可以直接找回自己 pending-list 中的消息 默认取主机名
+    // 名称变了(如重新部署换了主机名)也不会丢消息 旧名称下的消息空闲一段时间后由其它消费者认领
+    @Value("${seckill.order.stream.consumer:}")
+    private String consumerName;
+
+    // 检查其它消费者 pending 消息的间隔(毫秒)
+    @Value("${seckill.order.stream.claim-interval:30000}")
+    private long claimInterval;
+
+    // pending 消息空闲超过这个时间(毫秒)才转到自己名下 要明显大于一批订单的处理时间
+    @Value("${seckill.order.stream.claim-min-idle:60000}")
+    private long claimMinIdle;
+
+    // 一条消息最多投递的次数 超过后进入死信 不再重试
+    @Value("${seckill.order.stream.max-deliveries:5}")
+    private int maxDeliveries;
+
+    private volatile boolean running;
+    private Thread consumerThread;
+
+    @Override
+    public boolean enqueuedByScript() {
+        return true;
+    }
+
+    // 不经过脚本的下单路径(如库存租约)直接 xadd 和脚本一样近似裁剪
+    // XADD streams.orders MAXLEN ~ n * id .. userId .. voucherId ..
+    @Override
+    public void send(VoucherOrder voucherOrder) {
+        byte[][] args = {
+                bytes(SECKILL_ORDER_STREAM), bytes("MAXLEN"), bytes("~"), bytes(String.valueOf(SECKILL_ORDER_STREAM_MAXLEN)),
+                bytes("*"),
+                bytes("id"), bytes(voucherOrder.getId().toString()),
+                bytes("userId"), bytes(voucherOrder.getUserId().toString()),
+                bytes("voucherId"), bytes(voucherOrder.getVoucherId().toString())
+        };
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XADD", args));
+    }
+
+    @PostConstruct
+    public void start() throws Exception {
+        if (consumerName == null || consumerName.isEmpty()) {
+            consumerName = InetAddress.getLocalHost().getHostName();
+        }
+        createGroup();
+        running = true;
+        consumerThread = new Thread(this::consumeLoop, "order-stream-consumer");
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    // 不中断消费线程 等当前这批处理完并确认 超时再中断 没确认的消息留在 pending-list
+    @Override
+    public void stopConsuming(long timeoutMillis) {
+        running = false;
+        if (consumerThread == null) {
+            return;
+        }
+        try {
+            consumerThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        consumerThread.interrupt();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (consumerThread != null) {
+            consumerThread.interrupt();
+        }
+    }
+
+    // XGROUP CREATE streams.orders g1 0 MKSTREAM 组已存在时忽略
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    bytes("CREATE"), bytes(SECKILL_ORDER_STREAM), bytes(SECKILL_ORDER_GROUP), bytes("0"), bytes("MKSTREAM")));
+        } catch (RuntimeException e) {
+            if (!isBusyGroup(e)) {
+                throw e;
+            }
+        }
+    }
+
+    private static boolean isBusyGroup(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (String.valueOf(t.getMessage()).contains("BUSYGROUP")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void consumeLoop() {
+        // 先处理 pending-list 中上次没有确认的消息 每批处理完从最后一条之后继续读 没处理成功的留在 pending-list
+        boolean recovering = true;
+        String recoverFrom = "0";
+        Consumer consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName);
+        long nextClaim = System.currentTimeMillis();
+        while (running) {
+            try {
+                // 认领其它消费者遗留的消息 认领到的在自己的 pending-list 中 从头读一遍
+                if (System.currentTimeMillis() >= nextClaim) {
+                    nextClaim = System.currentTimeMillis() + claimInterval;
+                    if (claimIdlePending() > 0 && !recovering) {
+                        recovering = true;
+                        recoverFrom = "0";
+                    }
+                }
+                ReadOffset offset = recovering ? ReadOffset.from(recoverFrom) : ReadOffset.lastConsumed();
+                StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+                if (!recovering) {
+                    options = options.block(Duration.ofMillis(block));
+                }
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .read(consumer, options, StreamOffset.create(SECKILL_ORDER_STREAM, offset));
+                if (records == null || records.isEmpty()) {
+                    // pending-list 已经处理完 开始读新消息
+                    recovering = false;
+                    continue;
+                }
+                handle(records);
+                if (recovering) {
+                    recoverFrom = records.get(records.size() - 1).getId().getValue();
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("处理 stream 订单异常", e);
+                // 出现异常后重新从 pending-list 开始 保证消息不丢
+                recovering = true;
+                recoverFrom = "0";
+                sleepQuietly();
+            }
+        }
+    }
+
+    // XPENDING 找出空闲超过 claim-min-idle 的消息 XCLAIM 到自己名下 返回认领的数量
+    // 包括自己名下没处理成功的消息 认领后空闲时间清零 下一轮 recovering 重新处理
+    private int claimIdlePending() {
+        PendingMessages pending = stringRedisTemplate.opsForStream()
+                .pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), batchSize);
+        if (pending == null || pending.isEmpty()) {
+            return 0;
+        }
+        List<byte[]> args = new ArrayList<>();
+        args.add(bytes(SECKILL_ORDER_STREAM));
+        args.add(bytes(SECKILL_ORDER_GROUP));
+        args.add(bytes(consumerName));
+        args.add(bytes(String.valueOf(claimMinIdle)));
+        for (PendingMessage message : pending) {
+            if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimMinIdle) {
+                continue;
+            }
+            if (message.getTotalDeliveryCount() >= maxDeliveries) {
+                deadLetter(message.getId());
+                continue;
+            }
+            args.add(bytes(message.getIdAsString()));
+        }
+        if (args.size() == 4) {
+            return 0;
+        }
+        // 只转移归属 不返回消息内容 XCLAIM 会再检查一次空闲时间 多个节点同时认领只有一个成功
+        args.add(bytes("JUSTID"));
+        Object claimed = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("XCLAIM", args.toArray(new byte[0][])));
+        int count = claimed instanceof List ? ((List<?>) claimed).size() : 0;
+        if (count > 0) {
+            log.warn("认领空闲的订单消息 {} 条", count);
+        }
+        return count;
+    }
+
+    // 多次投递仍然没有处理成功 进入死信(补偿库存和已购用户)后确认
+    private void deadLetter(RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_STREAM, Range.closed(id.getValue(), id.getValue()));
+        String reason = "投递 " + maxDeliveries + " 次后仍然失败";
+        if (records == null || records.isEmpty()) {
+            // 消息已经被裁剪掉
+            orderDeadLetterHandler.deadLetterMalformed(id.getValue(), reason + ", 消息已不存在");
+        } else {
+            VoucherOrder voucherOrder = parse(records.get(0));
+            if (voucherOrder == null) {
+                orderDeadLetterHandler.deadLetterMalformed(id + " " + records.get(0).getValue(), reason);
+            } else {
+                // 落库一直出错 事务已回滚 数据库库存还在
+                orderDeadLetterHandler.deadLetter(voucherOrder, reason, true);
+            }
+        }
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, id);
+    }
+
+    private static VoucherOrder parse(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> value = record.getValue();
+        try {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(Long.valueOf(value.get("id").toString()));
+            voucherOrder.setUserId(Long.valueOf(value.get("userId").toString()));
+            voucherOrder.setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+            return voucherOrder;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void handle(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        Map<VoucherOrder, RecordId> ids = new IdentityHashMap<>(records.size());
+        List<RecordId> malformed = new ArrayList<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = parse(record);
+            if (voucherOrder == null) {
+                // 解析失败重试也不会成功 进入死信后确认
+                orderDeadLetterHandler.deadLetterMalformed(record.getId() + " " + record.getValue(), "无法解析的订单消息");
+                malformed.add(record.getId());
+                continue;
+            }
+            orders.add(voucherOrder);
+            ids.put(voucherOrder, record.getId());
+        }
+        if (!malformed.isEmpty()) {
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                    malformed.toArray(new RecordId[0]));
+        }
+        if (orders.isEmpty()) {
+            return;
+        }
+        // 只确认处理完的订单 落库出错的留在 pending-list 中 空闲超过 claim-min-idle 后重新处理
+        // 中途宕机的消息同样留在 pending-list 重启或被其它消费者认领后重新处理
+        List<VoucherOrder> settled = voucherOrderService.persistVoucherOrderBatch(orders);
+        if (settled.isEmpty()) {
+            return;
+        }
+        RecordId[] settledIds = settled.stream().map(ids::get).toArray(RecordId[]::new);
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, settledIds);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
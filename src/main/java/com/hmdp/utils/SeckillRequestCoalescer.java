@@ -0,0 +1,270 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * 秒杀请求合并器
+ * 并发的购买请求先放进队列 派发线程攒够 max-batch 个或者等待 max-wait-micros 后
+ * 用一次 seckill_batch.lua 判断整批请求的购买资格 再逐个唤醒调用方
+ * Redis 收到的 EVALSHA 次数从每请求一次降到每批一次
+ * 调用方等待超时的请求: 还没被派发线程取走的直接作废 不会再执行;
+ * 已经在执行的 等执行完后按结果处理: 订单id 已经由脚本写进 stream 的 订单照常创建 不补偿;
+ * 脚本扣了库存又没有交给订单队列的 还回库存并移除已购用户
+ */
+@Slf4j
+@Component
+public class SeckillRequestCoalescer {
+
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    static {
+        SECKILL_BATCH_SCRIPT = SeckillScripts.withPurchaser("seckill_batch.lua", List.class);
+        RESTOCK_SCRIPT = SeckillScripts.withPurchaser("seckill_restock.lua", Long.class);
+    }
+
+    // 请求状态: 排队中 已被派发线程取走 调用方已放弃
+    private static final int PENDING = 0;
+    private static final int TAKEN = 1;
+    private static final int CANCELLED = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Value("${seckill.coalesce.enabled:false}")
+    private boolean enabled;
+
+    // 一批最多合并的请求数
+    @Value("${seckill.coalesce.max-batch:64}")
+    private int maxBatch;
+
+    // 第一个请求到达后最多等待多久(微秒)
+    @Value("${seckill.coalesce.max-wait-micros:1000}")
+    private long maxWaitMicros;
+
+    // 派发线程数 多个线程可以让多批脚本同时在路上
+    @Value("${seckill.coalesce.dispatchers:2}")
+    private int dispatchers;
+
+    // 排队上限 队列满了由调用方自己执行单条脚本
+    @Value("${seckill.coalesce.queue-capacity:10000}")
+    private int queueCapacity;
+
+    // 调用方等待结果的超时时间(毫秒)
+    @Value("${seckill.coalesce.timeout:3000}")
+    private long timeout;
+
+    // 订单状态的过期时间(秒) 脚本入队时同时写入 PENDING
+    @Value("${seckill.order.status.ttl:600}")
+    private long statusTtl;
+
+    private BlockingQueue<Request> queue;
+    private ExecutorService dispatcherExecutor;
+    private volatile boolean running;
+
+    private static class Request {
+        private final Long voucherId;
+        private final Long userId;
+        private final String orderId;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Request(Long voucherId, Long userId, String orderId) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        dispatcherExecutor = Executors.newFixedThreadPool(dispatchers, r -> {
+            Thread t = new Thread(r, "seckill-coalescer");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < dispatchers; i++) {
+            dispatcherExecutor.submit(this::dispatchLoop);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (dispatcherExecutor != null) {
+            dispatcherExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 提交一次购买请求并等待结果
+     * @param orderId 订单id 由脚本入队时传入 否则传空串
+     * @return 0 成功 1 库存不足 2 重复下单 3 秒杀未开始 4 秒杀已结束 5 请求不合法;
+     * 队列已满时返回 null 由调用方自己执行单条脚本
+     */
+    public Long execute(Long voucherId, Long userId, String orderId) {
+        Request request = new Request(voucherId, userId, orderId);
+        if (!running || !queue.offer(request)) {
+            return null;
+        }
+        try {
+            return request.future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            abandon(request);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待秒杀结果被中断", e);
+        } catch (TimeoutException e) {
+            abandon(request);
+            throw new IllegalStateException("等待秒杀结果超时", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("执行秒杀脚本失败", e);
+        }
+    }
+
+    // 调用方放弃等待 保证放弃的请求不会留下扣了库存却没有订单的购买记录
+    private void abandon(Request request) {
+        // 1 还在排队 直接作废 派发线程不会再执行
+        if (queue.remove(request) || request.state.compareAndSet(PENDING, CANCELLED)) {
+            return;
+        }
+        // 2 已经在执行 等结果出来后再决定是否补偿
+        request.future.whenComplete((result, error) -> settleAbandoned(request, result, error));
+    }
+
+    private void settleAbandoned(Request request, Long result, Throwable error) {
+        // 1 脚本负责入队的请求 XADD 和写 PENDING 状态在同一个脚本里 状态存在说明订单已经进了 stream
+        // 订单照常创建 状态跟随订单流转 不能还库存 否则同一份库存会卖两次
+        if (!request.orderId.isEmpty()) {
+            if (isFlushed(request)) {
+                log.warn("秒杀请求等待超时, 订单已入队, 照常创建, orderId = {}, userId = {}",
+                        request.orderId, request.userId);
+            }
+            // 没有入队说明脚本没有扣库存 也不需要补偿
+            return;
+        }
+        // 2 脚本执行失败时不知道是否扣了库存 不猜测 留给对账任务处理
+        if (error != null) {
+            log.error("秒杀请求等待超时且脚本执行失败, 由对账任务处理, voucherId = {}, userId = {}",
+                    request.voucherId, request.userId, error);
+            return;
+        }
+        // 3 扣了库存 订单却不会再投递 还回库存
+        if (result == 0) {
+            compensate(request);
+        }
+    }
+
+    private boolean isFlushed(Request request) {
+        try {
+            return Boolean.TRUE.equals(stringRedisTemplate.hasKey(ORDER_STATUS_KEY + request.orderId));
+        } catch (Exception e) {
+            // 查询失败时按已入队处理 宁可不补偿 也不超卖
+            log.error("查询订单状态失败, orderId = {}", request.orderId, e);
+            return true;
+        }
+    }
+
+    private void compensate(Request request) {
+        try {
+            stringRedisTemplate.execute(RESTOCK_SCRIPT, Collections.emptyList(),
+                    request.voucherId.toString(), "1", request.userId.toString());
+            seckillSoldOutRegistry.clear(request.voucherId);
+            log.warn("秒杀请求等待超时, 已还回库存, voucherId = {}, userId = {}", request.voucherId, request.userId);
+        } catch (Exception e) {
+            // 补偿失败留给对账任务处理
+            log.error("秒杀请求超时补偿失败, voucherId = {}, userId = {}", request.voucherId, request.userId, e);
+        }
+    }
+
+    private void dispatchLoop() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            try {
+                // 1 阻塞等待第一个请求
+                Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // 2 在等待窗口内继续攒 攒满或超时就发出去
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                // 3 一次脚本处理整批
+                executeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("合并执行秒杀脚本异常", e);
+                for (Request request : batch) {
+                    request.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void executeBatch(List<Request> batch) {
+        // 跳过调用方已经放弃的请求
+        batch.removeIf(request -> !request.state.compareAndSet(PENDING, TAKEN));
+        if (batch.isEmpty()) {
+            return;
+        }
+        String[] args = new String[batch.size() * 3 + 3];
+        args[0] = String.valueOf(batch.size());
+        // 整批共用一个当前时间 用于判断秒杀时间窗口
+        args[1] = String.valueOf(System.currentTimeMillis());
+        args[2] = String.valueOf(statusTtl);
+        for (int i = 0; i < batch.size(); i++) {
+            Request request = batch.get(i);
+            args[i * 3 + 3] = request.voucherId.toString();
+            args[i * 3 + 4] = request.userId.toString();
+            args[i * 3 + 5] = request.orderId;
+        }
+        List<?> results = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), (Object[]) args);
+        if (results == null || results.size() != batch.size()) {
+            throw new IllegalStateException("秒杀脚本返回结果数量不一致");
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(((Number) results.get(i)).longValue());
+        }
+    }
+}
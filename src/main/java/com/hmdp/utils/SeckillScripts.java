@@ -0,0 +1,41 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.StaticScriptSource;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 秒杀相关的 lua 脚本
+ * 判断秒杀时间窗口和读写已购用户的函数只在 seckill_purchaser.lua 中维护一份 加载脚本时拼接到脚本前面
+ * 各处用同一个方法加载 同名脚本的内容和 SHA 都一致 预热时 SCRIPT LOAD 过的脚本可以直接命中
+ */
+public class SeckillScripts {
+
+    private static final String PURCHASER_LIBRARY = "seckill_purchaser.lua";
+
+    private SeckillScripts() {
+    }
+
+    /**
+     * 加载用到已购用户函数的脚本 seckill / seckill_batch / seckill_claim / seckill_restock / seckill_check
+     */
+    public static <T> DefaultRedisScript<T> withPurchaser(String name, Class<T> resultType) {
+        DefaultRedisScript<T> script = new DefaultRedisScript<>();
+        script.setScriptSource(new StaticScriptSource(read(PURCHASER_LIBRARY) + "\n" + read(name)));
+        script.setResultType(resultType);
+        return script;
+    }
+
+    private static String read(String name) {
+        try (InputStream in = new ClassPathResource(name).getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("读取 lua 脚本失败: " + name, e);
+        }
+    }
+}
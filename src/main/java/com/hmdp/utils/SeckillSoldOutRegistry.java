@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记
+ * 某张券第一次被 seckill.lua 判定库存不足后在本地打标记 之后的请求直接返回 不再访问 Redis
+ * 标记和清除都通过 Redis 发布订阅广播给所有节点
+ * 消息格式: "1:voucherId" 售罄  "0:voucherId" 补货
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "1";
+    private static final String RESTOCK = "0";
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    public void subscribe() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    // 标记售罄 只有本地第一次打标记时才广播 避免尾部大量请求重复发消息
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            publish(SOLD_OUT, voucherId);
+        }
+    }
+
+    // 只在本节点打标记 不广播 用于其它节点手里可能还有库存的场景(如库存租约)
+    public void markSoldOutLocal(Long voucherId) {
+        soldOut.add(voucherId);
+    }
+
+    // 只清除本节点的标记 不广播 用于预热时按 Redis 中的库存校正本地状态
+    public void clearLocal(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    // 补货后清除标记 无论本地是否有标记都要广播 其它节点可能已经打了标记
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(RESTOCK, voucherId);
+    }
+
+    private void publish(String type, Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, type + ":" + voucherId);
+        } catch (Exception e) {
+            // 广播失败不影响本节点 其它节点最多多访问几次 Redis
+            log.error("广播售罄状态失败, voucherId = {}", voucherId, e);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        // convertAndSend 经过 StringRedisSerializer 序列化 body 就是原始字符串
+        int idx = body.indexOf(':');
+        if (idx < 0) {
+            return;
+        }
+        String type = body.substring(0, idx);
+        Long voucherId = Long.valueOf(body.substring(idx + 1));
+        if (SOLD_OUT.equals(type)) {
+            soldOut.add(voucherId);
+        } else if (RESTOCK.equals(type)) {
+            soldOut.remove(voucherId);
+        }
+    }
+}
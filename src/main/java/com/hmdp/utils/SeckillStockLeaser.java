@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地库存租约
+ * 节点一次从 seckill:stock:{id} 原子地租借一批库存 之后的购买直接扣本地计数器
+ * 每个订单一次 Redis 库存操作 变成每批一次
+ * 一人一单: 本地集合先挡住本节点上的重复请求 再按券的存储方式写入 seckill:order:{id} 保证全局唯一
+ * 租约长时间不用或者节点关闭时 把剩余库存还回 Redis
+ */
+@Slf4j
+@Component
+public class SeckillStockLeaser {
+
+    private static final DefaultRedisScript<List> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(List.class);
+        RESTOCK_SCRIPT = SeckillScripts.withPurchaser("seckill_restock.lua", Long.class);
+        CLAIM_SCRIPT = SeckillScripts.withPurchaser("seckill_claim.lua", Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    // 每次租借的库存数量
+    @Value("${seckill.lease.chunk:200}")
+    private int chunk;
+
+    // 租约空闲多久后归还(毫秒)
+    @Value("${seckill.lease.ttl:30000}")
+    private long leaseTtl;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    // 本节点上已经购买过的用户 ConcurrentHashMap 内部分段 高并发下不会集中在一把锁上
+    private final Map<Long, Set<Long>> purchasers = new ConcurrentHashMap<>();
+
+    private static class Lease {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long lastAccess = System.currentTimeMillis();
+        // 秒杀时间窗口 租借时由脚本一起返回 之后在本地判断
+        private volatile long beginTime;
+        private volatile long endTime = Long.MAX_VALUE;
+    }
+
+    /**
+     * 从本地租约中扣一个库存 本地没有了再去 Redis 租一批
+     * @return 0 成功 1 库存不足 3 秒杀未开始 4 秒杀已结束 和 seckill.lua 的返回值一致
+     */
+    public int tryAcquire(Long voucherId) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        long now = System.currentTimeMillis();
+        lease.lastAccess = now;
+        while (true) {
+            if (now < lease.beginTime) {
+                return 3;
+            }
+            if (now > lease.endTime) {
+                return 4;
+            }
+            int n = lease.remaining.get();
+            if (n > 0) {
+                if (lease.remaining.compareAndSet(n, n - 1)) {
+                    return 0;
+                }
+                continue;
+            }
+            // 同一张券同一时刻只有一个线程去 Redis 续租
+            synchronized (lease) {
+                if (lease.remaining.get() > 0) {
+                    continue;
+                }
+                List<?> result = stringRedisTemplate.execute(
+                        LEASE_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(chunk), String.valueOf(now));
+                if (result == null || result.size() < 3) {
+                    return 1;
+                }
+                long taken = Long.parseLong(result.get(0).toString());
+                long begin = Long.parseLong(result.get(1).toString());
+                long end = Long.parseLong(result.get(2).toString());
+                lease.beginTime = begin;
+                lease.endTime = end > 0 ? end : Long.MAX_VALUE;
+                if (now < lease.beginTime) {
+                    return 3;
+                }
+                if (now > lease.endTime) {
+                    return 4;
+                }
+                if (taken <= 0) {
+                    return 1;
+                }
+                // 自己留一个 剩下的放进本地租约
+                lease.remaining.addAndGet((int) taken - 1);
+                return 0;
+            }
+        }
+    }
+
+    // 预热时提前创建租约和已购集合 并记下秒杀时间窗口 开售后第一个请求不用再初始化
+    public void prepare(Long voucherId, long beginTime, long endTime) {
+        Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+        lease.beginTime = beginTime;
+        lease.endTime = endTime > 0 ? endTime : Long.MAX_VALUE;
+        purchasers.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet());
+    }
+
+    // 扣了库存但没有下单成功 还回本地租约
+    public void giveBack(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        if (lease != null) {
+            lease.remaining.incrementAndGet();
+        }
+    }
+
+    public boolean isPurchasedLocally(Long voucherId, Long userId) {
+        Set<Long> users = purchasers.get(voucherId);
+        return users != null && users.contains(userId);
+    }
+
+    // 登记已购用户 本地集合 + Redis 已购用户 Redis 中已存在说明是重复下单 返回 false
+    public boolean claimPurchaser(Long voucherId, Long userId) {
+        Set<Long> users = purchasers.computeIfAbsent(voucherId, id -> ConcurrentHashMap.newKeySet());
+        if (!users.add(userId)) {
+            return false;
+        }
+        Long added;
+        try {
+            added = stringRedisTemplate.execute(
+                    CLAIM_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString());
+        } catch (RuntimeException e) {
+            users.remove(userId);
+            throw e;
+        }
+        return added != null && added > 0;
+    }
+
+    // 空闲超时的租约把剩余库存还回 Redis
+    // 本地已购集合只是挡住本节点的重复请求 Redis 中的已购用户才是准的 租约空闲或秒杀结束后一起清掉
+    // 秒杀结束的券连租约一起删除 不再占用内存
+    @Scheduled(fixedDelayString = "${seckill.lease.check-interval:5000}")
+    public void releaseIdleLeases() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            boolean ended = now > lease.endTime;
+            if (!ended && now - lease.lastAccess < leaseTtl) {
+                return;
+            }
+            release(voucherId, lease);
+            purchasers.remove(voucherId);
+            if (ended && lease.remaining.get() == 0) {
+                leases.remove(voucherId, lease);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void releaseAll() {
+        leases.forEach(this::release);
+    }
+
+    private void release(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            int n = lease.remaining.getAndSet(0);
+            if (n <= 0) {
+                return;
+            }
+            try {
+                stringRedisTemplate.execute(
+                        RESTOCK_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(n), "");
+                log.debug("归还库存租约, voucherId = {}, count = {}", voucherId, n);
+            } catch (Exception e) {
+                // 还不回去就放回本地 下次再试
+                lease.remaining.addAndGet(n);
+                log.error("归还库存租约失败, voucherId = {}, count = {}", voucherId, n, e);
+                return;
+            }
+        }
+        // 库存回到 Redis 其它节点可以继续卖
+        seckillSoldOutRegistry.clear(voucherId);
+    }
+}
@@ -0,0 +1,425 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_CURSOR_KEY;
+
+/**
+ * 秒杀库存对账
+ * 异步下单链路上 Redis 中的库存和已购用户 与数据库中的库存和订单可能不一致 (消息丢失 消费失败 Redis 数据丢失)
+ * 定时按 voucher_id 增量地遍历最近的秒杀券 每轮只处理一部分 对每张券:
+ * 1 按 idx_voucher_user 索引分页读取订单 批量检查用户是否在 Redis 已购用户中 找出 Redis 缺失的已购用户
+ * 2 已购用户数比订单数多时 再分页遍历 Redis 已购用户 批量查询数据库 找出缺失的订单
+ * 3 输出偏差报告和指标 秒杀结束足够久后可以按配置修复: create 补建缺失的订单 release 把库存还回 Redis
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private static final DefaultRedisScript<List> CHECK_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    static {
+        CHECK_SCRIPT = SeckillScripts.withPurchaser("seckill_check.lua", List.class);
+        RESTOCK_SCRIPT = SeckillScripts.withPurchaser("seckill_restock.lua", Long.class);
+    }
+
+    // bitmap 每次 GETRANGE 读取的字节数
+    private static final int BITMAP_CHUNK = 64 * 1024;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillStockSynchronizer seckillStockSynchronizer;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${seckill.reconcile.enabled:false}")
+    private boolean enabled;
+
+    // 每页读取的订单数 / 已购用户数
+    @Value("${seckill.reconcile.batch-size:500}")
+    private int batchSize;
+
+    // 每轮最多对账的券数
+    @Value("${seckill.reconcile.vouchers-per-run:20}")
+    private int vouchersPerRun;
+
+    // 对账最近多少小时内结束的券
+    @Value("${seckill.reconcile.lookback-hours:24}")
+    private long lookbackHours;
+
+    // 秒杀结束多久后才允许修复(毫秒) 在此之前缺失的订单可能还在队列中
+    @Value("${seckill.reconcile.settle-delay:300000}")
+    private long settleDelay;
+
+    // 修复方式 none 只报告 create 补建订单 release 归还库存
+    @Value("${seckill.reconcile.repair:none}")
+    private String repair;
+
+    // 每张券最近一次对账的偏差 指标按类型汇总所有券 不按券打标签 结束超过 lookback-hours 的券移除
+    private final Map<Long, Drift> drifts = new ConcurrentHashMap<>();
+
+    private static class Drift {
+        private final LocalDateTime endTime;
+        private final long missingOrders;
+        private final long missingPurchasers;
+        private final long stockDrift;
+
+        private Drift(LocalDateTime endTime, long missingOrders, long missingPurchasers, long stockDrift) {
+            this.endTime = endTime;
+            this.missingOrders = missingOrders;
+            this.missingPurchasers = missingPurchasers;
+            this.stockDrift = stockDrift;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        gauge("missing_orders", d -> d.missingOrders);
+        gauge("missing_purchasers", d -> d.missingPurchasers);
+        // 正负偏差不互相抵消
+        gauge("stock_drift", d -> Math.abs(d.stockDrift));
+    }
+
+    @Scheduled(initialDelayString = "${seckill.reconcile.initial-delay:60000}",
+            fixedDelayString = "${seckill.reconcile.interval:300000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        // 多个节点只有一个执行
+        RLock lock = redissonClient.getLock("lock:seckill:reconcile");
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            // 1 从上一轮的位置继续 取一批已经开始的秒杀券
+            String cursor = stringRedisTemplate.opsForValue().get(SECKILL_RECONCILE_CURSOR_KEY);
+            long lastVoucherId = cursor == null ? 0 : Long.parseLong(cursor);
+            LocalDateTime now = LocalDateTime.now();
+            drifts.values().removeIf(d -> d.endTime.isBefore(now.minusHours(lookbackHours)));
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now)
+                    .gt("end_time", now.minusHours(lookbackHours))
+                    .gt("voucher_id", lastVoucherId)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + vouchersPerRun)
+                    .list();
+            if (vouchers.isEmpty()) {
+                // 一遍走完 下一轮从头开始
+                stringRedisTemplate.delete(SECKILL_RECONCILE_CURSOR_KEY);
+                return;
+            }
+            // 2 逐张券对账
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcile(voucher, now);
+                } catch (Exception e) {
+                    log.error("秒杀对账失败, voucherId = {}", voucher.getVoucherId(), e);
+                }
+                stringRedisTemplate.opsForValue().set(SECKILL_RECONCILE_CURSOR_KEY, voucher.getVoucherId().toString());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcile(SeckillVoucher voucher, LocalDateTime now) {
+        Long voucherId = voucher.getVoucherId();
+        Long redisStock = seckillStockSynchronizer.remainingStock(voucherId);
+        if (redisStock == null) {
+            // Redis 中没有这张券 由预热任务重建
+            log.warn("秒杀对账 Redis 中没有库存, 跳过, voucherId = {}", voucherId);
+            return;
+        }
+        Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(SECKILL_META_KEY + voucherId);
+        long purchasers = countPurchasers(voucherId, meta);
+        long orders = voucherOrderService.query().eq("voucher_id", voucherId).count();
+
+        // 1 有订单但不在 Redis 已购用户中
+        List<Long> missingPurchasers = findMissingPurchasers(voucherId);
+        // 2 已购用户比订单多 说明有订单没有落库 逐页找出来
+        List<Long> missingOrders = purchasers > orders - missingPurchasers.size()
+                ? findMissingOrders(voucherId, meta)
+                : Collections.emptyList();
+        // 3 库存偏差 Redis 剩余 + 已购用户 应该等于 数据库剩余 + 订单数
+        // 开启库存异步回写或本地库存租约时 秒杀过程中会有正常的偏差
+        long stockDrift = (redisStock + purchasers) - (voucher.getStock() + orders);
+
+        drifts.put(voucherId, new Drift(voucher.getEndTime(), missingOrders.size(), missingPurchasers.size(), stockDrift));
+        if (missingOrders.isEmpty() && missingPurchasers.isEmpty() && stockDrift == 0) {
+            log.debug("秒杀对账一致, voucherId = {}, orders = {}", voucherId, orders);
+            return;
+        }
+        log.warn("秒杀对账发现偏差, voucherId = {}, redisStock = {}, purchasers = {}, dbStock = {}, orders = {}, "
+                        + "missingOrders = {} {}, missingPurchasers = {} {}, stockDrift = {}",
+                voucherId, redisStock, purchasers, voucher.getStock(), orders,
+                missingOrders.size(), sample(missingOrders), missingPurchasers.size(), sample(missingPurchasers),
+                stockDrift);
+
+        // 4 秒杀结束足够久 队列中不会再有这张券的订单 才允许修复
+        boolean settled = voucher.getEndTime().plus(Duration.ofMillis(settleDelay)).isBefore(now);
+        if (settled && !missingOrders.isEmpty()) {
+            repairMissingOrders(voucherId, missingOrders);
+        }
+    }
+
+    private List<Long> findMissingPurchasers(Long voucherId) {
+        List<Long> missing = new ArrayList<>();
+        long lastUserId = 0;
+        while (true) {
+            // 走 idx_voucher_user 覆盖索引 按 user_id 翻页
+            List<VoucherOrder> page = voucherOrderService.query()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("user_id", lastUserId)
+                    .orderByAsc("user_id")
+                    .last("limit " + batchSize)
+                    .list();
+            if (page.isEmpty()) {
+                return missing;
+            }
+            List<Long> userIds = page.stream().map(VoucherOrder::getUserId).collect(Collectors.toList());
+            List<Boolean> flags = isPurchasers(voucherId, userIds);
+            for (int i = 0; i < page.size(); i++) {
+                if (!flags.get(i)) {
+                    missing.add(userIds.get(i));
+                }
+            }
+            lastUserId = page.get(page.size() - 1).getUserId();
+        }
+    }
+
+    // 批量判断用户是否在 Redis 已购用户中 返回和用户顺序一致的结果
+    private List<Boolean> isPurchasers(Long voucherId, List<Long> userIds) {
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards > 0) {
+            return seckillStockShards.isPurchasers(voucherId, shards, userIds);
+        }
+        List<String> args = new ArrayList<>(userIds.size() + 1);
+        args.add(voucherId.toString());
+        for (Long userId : userIds) {
+            args.add(userId.toString());
+        }
+        List<?> flags = stringRedisTemplate.execute(CHECK_SCRIPT, Collections.emptyList(), args.toArray());
+        List<Boolean> results = new ArrayList<>(userIds.size());
+        for (int i = 0; i < userIds.size(); i++) {
+            results.add(flags != null && ((Number) flags.get(i)).longValue() == 1);
+        }
+        return results;
+    }
+
+    private List<Long> findMissingOrders(Long voucherId, Map<Object, Object> meta) {
+        List<Long> missing = new ArrayList<>();
+        forEachPurchaserBatch(voucherId, meta, userIds -> {
+            Set<Long> existed = voucherOrderService.query()
+                    .select("user_id")
+                    .eq("voucher_id", voucherId)
+                    .in("user_id", userIds)
+                    .list()
+                    .stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+            for (Long userId : userIds) {
+                if (!existed.contains(userId)) {
+                    missing.add(userId);
+                }
+            }
+        });
+        return missing;
+    }
+
+    private void repairMissingOrders(Long voucherId, List<Long> userIds) {
+        if ("create".equals(repair)) {
+            // 补建订单 走正常的下单事务 数据库库存同时扣减 订单id 和下单链路用同一个生成器
+            // 对账期间可能已经有订单落库 数据库库存不足时也不会插入 只统计实际插入的订单
+            int created = 0;
+            for (Long userId : userIds) {
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(voucherOrderService.nextOrderId());
+                voucherOrder.setUserId(userId);
+                voucherOrder.setVoucherId(voucherId);
+                IVoucherOrderService.CreateResult result = voucherOrderService.createVoucherOrder(voucherOrder);
+                if (result == IVoucherOrderService.CreateResult.CREATED) {
+                    created++;
+                } else {
+                    log.warn("秒杀对账 没有补建订单, voucherId = {}, userId = {}, result = {}", voucherId, userId, result);
+                }
+            }
+            log.warn("秒杀对账 补建订单, voucherId = {}, missing = {}, created = {}", voucherId, userIds.size(), created);
+        } else if ("release".equals(repair)) {
+            // 库存还回 Redis 用户可以重新购买
+            int shards = seckillStockShards.shards(voucherId);
+            for (Long userId : userIds) {
+                if (shards > 0) {
+                    seckillStockShards.restock(voucherId, shards, userId, 1);
+                } else {
+                    stringRedisTemplate.execute(RESTOCK_SCRIPT, Collections.emptyList(),
+                            voucherId.toString(), "1", userId.toString());
+                }
+            }
+            seckillSoldOutRegistry.clear(voucherId);
+            log.warn("秒杀对账 归还库存, voucherId = {}, count = {}", voucherId, userIds.size());
+        }
+    }
+
+    // 已购用户数 按存储方式统计
+    private long countPurchasers(Long voucherId, Map<Object, Object> meta) {
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards > 0) {
+            return seckillStockShards.countPurchasers(voucherId, shards);
+        }
+        String key = SECKILL_ORDER_KEY + voucherId;
+        Object encoding = meta.get("encoding");
+        if ("bitmap".equals(encoding)) {
+            Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                    connection.bitCount(key.getBytes(StandardCharsets.UTF_8)));
+            Long overflow = stringRedisTemplate.opsForSet().size(key + ":overflow");
+            return (bits == null ? 0 : bits) + (overflow == null ? 0 : overflow);
+        }
+        if ("bucket".equals(encoding)) {
+            long total = 0;
+            int buckets = Integer.parseInt(meta.get("buckets").toString());
+            for (int i = 0; i < buckets; i++) {
+                Long size = stringRedisTemplate.opsForHash().size(key + ":" + i);
+                total += size == null ? 0 : size;
+            }
+            return total;
+        }
+        Long size = stringRedisTemplate.opsForSet().size(key);
+        return size == null ? 0 : size;
+    }
+
+    // 分批遍历已购用户 每批最多 batchSize 个
+    private void forEachPurchaserBatch(Long voucherId, Map<Object, Object> meta, Consumer<List<Long>> consumer) {
+        String key = SECKILL_ORDER_KEY + voucherId;
+        Object encoding = meta.get("encoding");
+        List<Long> batch = new ArrayList<>(batchSize);
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards > 0) {
+            // 分片库存 每个分片一个已购用户集合
+            for (int i = 0; i < shards; i++) {
+                scanSet(SeckillStockShards.purchaserKey(voucherId, i), batch, consumer);
+            }
+        } else if ("bitmap".equals(encoding)) {
+            Object base = meta.get("base");
+            scanBitmap(key, base == null ? 0 : Long.parseLong(base.toString()), batch, consumer);
+            scanSet(key + ":overflow", batch, consumer);
+        } else if ("bucket".equals(encoding)) {
+            int buckets = Integer.parseInt(meta.get("buckets").toString());
+            for (int i = 0; i < buckets; i++) {
+                for (Object field : stringRedisTemplate.opsForHash().keys(key + ":" + i)) {
+                    accept(batch, Long.valueOf(field.toString()), consumer);
+                }
+            }
+        } else {
+            scanSet(key, batch, consumer);
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(new ArrayList<>(batch));
+        }
+    }
+
+    private void scanSet(String key, List<Long> batch, Consumer<List<Long>> consumer) {
+        ScanOptions options = ScanOptions.scanOptions().count(batchSize).build();
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet().scan(key, options)) {
+            while (cursor.hasNext()) {
+                accept(batch, Long.valueOf(cursor.next()), consumer);
+            }
+        }
+    }
+
+    // bitmap 分段 GETRANGE 第 i 个字节的最高位对应偏移量 i * 8 用户id = base + 偏移量
+    private void scanBitmap(String key, long base, List<Long> batch, Consumer<List<Long>> consumer) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Long length = stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.strLen(rawKey));
+        if (length == null) {
+            return;
+        }
+        for (long start = 0; start < length; start += BITMAP_CHUNK) {
+            long from = start;
+            byte[] chunk = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                    connection.getRange(rawKey, from, from + BITMAP_CHUNK - 1));
+            if (chunk == null) {
+                return;
+            }
+            for (int i = 0; i < chunk.length; i++) {
+                if (chunk[i] == 0) {
+                    continue;
+                }
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((chunk[i] & (0x80 >>> bit)) != 0) {
+                        accept(batch, base + (from + i) * 8 + bit, consumer);
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept(List<Long> batch, Long userId, Consumer<List<Long>> consumer) {
+        batch.add(userId);
+        if (batch.size() >= batchSize) {
+            consumer.accept(new ArrayList<>(batch));
+            batch.clear();
+        }
+    }
+
+    private void gauge(String type, ToLongFunction<Drift> value) {
+        Gauge.builder("seckill.reconcile.drift", drifts, m -> m.values().stream().mapToLong(value).sum())
+                .tag("type", type)
+                .register(meterRegistry);
+    }
+
+    // 日志里只打印前几个用户id
+    private static List<Long> sample(List<Long> userIds) {
+        return userIds.size() <= 20 ? userIds : userIds.subList(0, 20);
+    }
+}
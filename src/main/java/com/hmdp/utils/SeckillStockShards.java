@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_MAX_STOCK_SHARDS;
+import static com.hmdp.utils.RedisConstants.SECKILL_META_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_KEY;
+
+/**
+ * 热点秒杀券的分片库存
+ * 库存拆到 N 个分片上 分片 i 有两个 key: hash seckill:shard:{voucherId:i} (stock begin end) 和已购用户集合 seckill:order:{voucherId:i}
+ * 两个 key 用 {voucherId:i} 做 hash tag 在同一个 slot 不同分片在不同 slot 集群下一张券的请求分散到多个节点
+ * 由客户端选分片 脚本只通过 KEYS 访问一个分片 每次调用都不跨 slot
+ * 一人一单: 用户固定归属 userId % N 的分片 已购用户只记在归属分片上
+ * 归属分片没有库存时 脚本先在归属分片登记用户 客户端再依次去其它分片扣库存 都扣不到时撤销登记
+ * 分片数记录在 seckill:meta:{id} 的 shards 字段 各节点本地缓存一段时间
+ * 分片券的已购用户固定用 set 订单由客户端投递到订单队列 不走库存租约和请求合并
+ */
+@Component
+public class SeckillStockShards {
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        TAKE_SCRIPT = new DefaultRedisScript<>();
+        TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        TAKE_SCRIPT.setResultType(Long.class);
+        RESTOCK_SCRIPT = new DefaultRedisScript<>();
+        RESTOCK_SCRIPT.setLocation(new ClassPathResource("seckill_shard_restock.lua"));
+        RESTOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 秒杀请求路径上用到的脚本 由预热任务提前 SCRIPT LOAD
+    public static final List<DefaultRedisScript<?>> SCRIPTS = Arrays.asList(SHARD_SCRIPT, TAKE_SCRIPT, RESTOCK_SCRIPT);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 券的分片数 0 表示没有分片 过期后重新读取 Redis 数据丢失后能回到普通库存
+    private final Cache<Long, Integer> shardCounts = CacheBuilder.newBuilder()
+            .expireAfterWrite(60, TimeUnit.SECONDS)
+            .maximumSize(10000)
+            .build();
+
+    // 新建秒杀券时写入分片 分片数最后写 其它节点看到分片数时分片已经存在
+    public void save(Long voucherId, int stock, int shards, Long beginTime, Long endTime) {
+        if (shards < 2 || shards > SECKILL_MAX_STOCK_SHARDS) {
+            throw new IllegalArgumentException("库存分片数不合法: " + shards);
+        }
+        // 库存平均分配 余数分给前面的分片
+        int base = stock / shards;
+        int remainder = stock % shards;
+        for (int i = 0; i < shards; i++) {
+            Map<String, String> shard = new HashMap<>();
+            shard.put("stock", String.valueOf(base + (i < remainder ? 1 : 0)));
+            if (beginTime != null) {
+                shard.put("begin", beginTime.toString());
+            }
+            if (endTime != null) {
+                shard.put("end", endTime.toString());
+            }
+            stringRedisTemplate.opsForHash().putAll(shardKey(voucherId, i), shard);
+        }
+        stringRedisTemplate.opsForHash().put(SECKILL_META_KEY + voucherId, "shards", String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    // 券的分片数 没有分片返回 0
+    public int shards(Long voucherId) {
+        try {
+            return shardCounts.get(voucherId, () -> {
+                Object shards = stringRedisTemplate.opsForHash().get(SECKILL_META_KEY + voucherId, "shards");
+                return shards == null ? 0 : Integer.parseInt(shards.toString());
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("读取库存分片数失败, voucherId = " + voucherId, e.getCause());
+        }
+    }
+
+    // 返回值和 seckill.lua 一致 0 成功 1 库存不足 2 重复下单 3 未开始 4 已结束 5 券不存在
+    public long seckill(Long voucherId, Long userId, int shards) {
+        int home = home(userId, shards);
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(shardKey(voucherId, home), purchaserKey(voucherId, home)),
+                userId.toString(), String.valueOf(System.currentTimeMillis()));
+        if (result == null) {
+            return 1;
+        }
+        if (result == 5) {
+            // 分片已经不存在 下次重新读取分片数
+            shardCounts.invalidate(voucherId);
+            return 5;
+        }
+        if (result != 6) {
+            return result;
+        }
+        // 归属分片没有库存 用户已经登记在归属分片上 从随机位置开始探测其它分片 避免都挤到同一个分片
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        try {
+            for (int i = 0; i < shards; i++) {
+                int shard = (start + i) % shards;
+                if (shard == home) {
+                    continue;
+                }
+                Long taken = stringRedisTemplate.execute(TAKE_SCRIPT,
+                        Collections.singletonList(shardKey(voucherId, shard)));
+                if (taken != null && taken == 1) {
+                    return 0;
+                }
+            }
+        } catch (RuntimeException e) {
+            restock(voucherId, shards, userId, 0);
+            throw e;
+        }
+        // 所有分片都没有库存 撤销登记
+        restock(voucherId, shards, userId, 0);
+        return 1;
+    }
+
+    // 库存还到用户的归属分片 同时移除已购用户 库存在分片之间可以互相借用 还到哪个分片都一样
+    // userId 为 null 时只还库存 随机选一个分片
+    public void restock(Long voucherId, int shards, Long userId, long count) {
+        int shard = userId == null ? ThreadLocalRandom.current().nextInt(shards) : home(userId, shards);
+        stringRedisTemplate.execute(RESTOCK_SCRIPT,
+                Arrays.asList(shardKey(voucherId, shard), purchaserKey(voucherId, shard)),
+                String.valueOf(count), userId == null ? "" : userId.toString());
+    }
+
+    // 所有分片的剩余库存之和 分片都不存在时返回 null
+    public Long remainingStock(Long voucherId, int shards) {
+        Long total = null;
+        for (int i = 0; i < shards; i++) {
+            Object stock = stringRedisTemplate.opsForHash().get(shardKey(voucherId, i), "stock");
+            if (stock != null) {
+                total = (total == null ? 0 : total) + Long.parseLong(stock.toString());
+            }
+        }
+        return total;
+    }
+
+    public long countPurchasers(Long voucherId, int shards) {
+        long total = 0;
+        for (int i = 0; i < shards; i++) {
+            Long size = stringRedisTemplate.opsForSet().size(purchaserKey(voucherId, i));
+            total += size == null ? 0 : size;
+        }
+        return total;
+    }
+
+    // 批量判断用户是否在各自归属分片的已购用户中 一次 pipeline 返回和用户顺序一致的结果
+    public List<Boolean> isPurchasers(Long voucherId, int shards, List<Long> userIds) {
+        List<Object> flags = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long userId : userIds) {
+                connection.sIsMember(bytes(purchaserKey(voucherId, home(userId, shards))), bytes(userId.toString()));
+            }
+            return null;
+        });
+        List<Boolean> results = new ArrayList<>(userIds.size());
+        for (Object flag : flags) {
+            results.add(Boolean.TRUE.equals(flag));
+        }
+        return results;
+    }
+
+    public static String shardKey(Long voucherId, int shard) {
+        return SECKILL_SHARD_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String purchaserKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static int home(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_SYNCED_KEY;
+
+/**
+ * 秒杀库存异步回写
+ * 秒杀期间 Redis 中的库存才是准的 下单时不再逐条 UPDATE tb_seckill_voucher 的同一行
+ * 每个订单事务提交后只在本地累加扣减数量 定时把每张券的累计值一次写回数据库
+ * 秒杀结束后再用 Redis 中的剩余库存覆盖数据库 做最终对账
+ * 对账之后 扣减已经算在 Redis 的剩余库存里 直接丢弃 归还(取消订单)发生在对账之后 照常写回
+ * 累计值只在内存中 节点宕机会丢掉最多一个回写间隔的数量:
+ * 对账之前丢掉的由最终对账覆盖 对账之后丢掉的归还需要靠 SeckillStockReconciler 的偏差报告发现
+ */
+@Slf4j
+@Component
+public class SeckillStockSynchronizer {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Value("${seckill.stock.write-behind:false}")
+    private boolean enabled;
+
+    // 秒杀结束多久后做最终对账(毫秒) 要大于回写间隔 等队列中的订单消费完
+    @Value("${seckill.stock.reconcile-delay:60000}")
+    private long reconcileDelay;
+
+    // 本地还没写回数据库的扣减数量
+    private final Map<Long, AtomicLong> deltas = new ConcurrentHashMap<>();
+    // 本地还没写回数据库的归还数量 和扣减分开记 对账之后仍要写回
+    private final Map<Long, AtomicLong> returns = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // 记录扣减 在事务中调用时等事务提交后才累加 回滚的订单不会扣库存
+    public void record(Long voucherId, long count) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            add(voucherId, count);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                add(voucherId, count);
+            }
+        });
+    }
+
+    // count 为负数表示归还
+    private void add(Long voucherId, long count) {
+        Map<Long, AtomicLong> target = count >= 0 ? deltas : returns;
+        target.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(count);
+    }
+
+    // 定时回写 每张券一条 UPDATE
+    @Scheduled(fixedDelayString = "${seckill.stock.flush-interval:1000}")
+    public void flush() {
+        Set<Long> voucherIds = new HashSet<>(deltas.keySet());
+        voucherIds.addAll(returns.keySet());
+        for (Long voucherId : voucherIds) {
+            AtomicLong delta = deltas.get(voucherId);
+            AtomicLong returned = returns.get(voucherId);
+            long decrement = delta == null ? 0 : delta.getAndSet(0);
+            long increment = returned == null ? 0 : -returned.getAndSet(0);
+            if (decrement == 0 && increment == 0) {
+                continue;
+            }
+            try {
+                // 已经对过账的券 扣减已经包含在最终值里 丢弃 只写回对账之后的归还
+                if (decrement != 0 && Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_SYNCED_KEY + voucherId))) {
+                    log.warn("库存已对账, 丢弃扣减回写, voucherId = {}, count = {}", voucherId, decrement);
+                    decrement = 0;
+                }
+                long count = decrement - increment;
+                if (count != 0) {
+                    seckillVoucherService.update()
+                            .setSql("stock = stock - " + count)
+                            .eq("voucher_id", voucherId)
+                            .update();
+                }
+            } catch (Exception e) {
+                // 写回失败放回去 下次再写
+                if (decrement != 0) {
+                    deltas.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(decrement);
+                }
+                if (increment != 0) {
+                    returns.computeIfAbsent(voucherId, id -> new AtomicLong()).addAndGet(-increment);
+                }
+                log.error("库存回写失败, voucherId = {}, decrement = {}, increment = {}", voucherId, decrement, increment, e);
+            }
+        }
+    }
+
+    // 最终对账 刚结束的秒杀券用 Redis 中的剩余库存覆盖数据库 多个节点只有一个执行
+    @Scheduled(fixedDelayString = "${seckill.stock.reconcile-interval:60000}")
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        LocalDateTime deadline = LocalDateTime.now().minus(Duration.ofMillis(reconcileDelay));
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("end_time", deadline)
+                .gt("end_time", deadline.minusDays(1))
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            try {
+                Long stock = remainingStock(voucherId);
+                if (stock == null) {
+                    continue;
+                }
+                Boolean first = stringRedisTemplate.opsForValue()
+                        .setIfAbsent(SECKILL_STOCK_SYNCED_KEY + voucherId, stock.toString(), 2, TimeUnit.DAYS);
+                if (!Boolean.TRUE.equals(first)) {
+                    continue;
+                }
+                // 对账前的扣减和归还都已经反映在 Redis 的剩余库存里
+                deltas.remove(voucherId);
+                returns.remove(voucherId);
+                seckillVoucherService.update()
+                        .set("stock", stock)
+                        .eq("voucher_id", voucherId)
+                        .update();
+                log.info("秒杀库存对账完成, voucherId = {}, db = {}, redis = {}", voucherId, voucher.getStock(), stock);
+            } catch (Exception e) {
+                log.error("秒杀库存对账失败, voucherId = {}", voucherId, e);
+            }
+        }
+    }
+
+    // Redis 中的剩余库存 分片库存取所有分片之和 没有库存 key 时返回 null
+    public Long remainingStock(Long voucherId) {
+        int shards = seckillStockShards.shards(voucherId);
+        if (shards > 0) {
+            return seckillStockShards.remainingStock(voucherId, shards);
+        }
+        String stock = stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId);
+        return stock == null ? null : Long.valueOf(stock);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+    }
+}
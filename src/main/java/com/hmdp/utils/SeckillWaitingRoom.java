@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.map.MapUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WAITING_ACTIVE_KEY;
+
+/**
+ * 秒杀排队
+ * 开售时所有请求先进入 Redis 排队队列 seckill:waiting:{id} 拿到排队位置
+ * 调度任务按固定速率从队头放行 放行的用户轮询时拿到一个短期有效的购买凭证
+ * 凭证是 HMAC(券id:用户id:过期时间) 秒杀接口在本地校验 不访问 Redis
+ * 不管多少人在排队 进入秒杀接口的请求速率都不超过放行速率
+ */
+@Slf4j
+@Component
+public class SeckillWaitingRoom {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final DefaultRedisScript<List> JOIN_SCRIPT;
+    private static final DefaultRedisScript<Long> ADMIT_SCRIPT;
+    static {
+        JOIN_SCRIPT = new DefaultRedisScript<>();
+        JOIN_SCRIPT.setLocation(new ClassPathResource("waiting_room_join.lua"));
+        JOIN_SCRIPT.setResultType(List.class);
+        ADMIT_SCRIPT = new DefaultRedisScript<>();
+        ADMIT_SCRIPT.setLocation(new ClassPathResource("waiting_room_admit.lua"));
+        ADMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Value("${seckill.waiting-room.enabled:false}")
+    private boolean enabled;
+
+    // 每张券每秒放行的人数 所有节点合计
+    @Value("${seckill.waiting-room.admit-rate:200}")
+    private int admitRate;
+
+    // 一次调度最多放行的人数
+    @Value("${seckill.waiting-room.admit-burst:100}")
+    private int admitBurst;
+
+    // 购买凭证有效期(毫秒)
+    @Value("${seckill.waiting-room.token-ttl:30000}")
+    private long tokenTtl;
+
+    // 签名密钥 所有节点必须相同 没有默认值 公开的默认密钥等于任何人都能伪造凭证
+    @Value("${seckill.waiting-room.secret:}")
+    private String secret;
+
+    private ThreadLocal<Mac> macs;
+
+    @PostConstruct
+    public void init() {
+        if (secret == null || secret.isEmpty()) {
+            if (enabled) {
+                throw new IllegalStateException("开启秒杀排队时必须配置 seckill.waiting-room.secret");
+            }
+            return;
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("初始化 " + HMAC_ALGORITHM + " 失败", e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // 排队或查询排队进度 已放行时返回购买凭证 否则返回前面还有多少人
+    public Result join(Long voucherId, Long userId) {
+        if (!enabled) {
+            return Result.fail("未开启秒杀排队");
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        List<?> result = stringRedisTemplate.execute(
+                JOIN_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), userId.toString(), String.valueOf(System.currentTimeMillis()));
+        if (result == null || result.size() < 2) {
+            return Result.fail("排队失败");
+        }
+        long rank = Long.parseLong(result.get(0).toString());
+        if (rank < 0) {
+            long expireAt = Long.parseLong(result.get(1).toString());
+            return Result.ok(MapUtil.of("token", sign(voucherId, userId, expireAt)));
+        }
+        return Result.ok(MapUtil.of("rank", rank));
+    }
+
+    // 本地校验购买凭证 格式: 过期时间.签名
+    public boolean verify(Long voucherId, Long userId, String token) {
+        if (token == null) {
+            return false;
+        }
+        int dot = token.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(token.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt <= System.currentTimeMillis()) {
+            return false;
+        }
+        byte[] expected = sign(voucherId, userId, expireAt).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sign(Long voucherId, Long userId, long expireAt) {
+        byte[] payload = (voucherId + ":" + userId + ":" + expireAt).getBytes(StandardCharsets.UTF_8);
+        byte[] signature = macs.get().doFinal(payload);
+        return expireAt + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature);
+    }
+
+    // 按速率放行 放行人数由脚本根据上次放行时间计算 多个节点同时调度不会放行更多人
+    @Scheduled(fixedDelayString = "${seckill.waiting-room.admit-interval:100}")
+    public void admit() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_WAITING_ACTIVE_KEY);
+            if (voucherIds == null) {
+                return;
+            }
+            String now = String.valueOf(System.currentTimeMillis());
+            for (String voucherId : voucherIds) {
+                // 已经售罄的券不再放行 排队的用户查询时直接返回库存不足
+                if (seckillSoldOutRegistry.isSoldOut(Long.valueOf(voucherId))) {
+                    continue;
+                }
+                stringRedisTemplate.execute(ADMIT_SCRIPT, Collections.emptyList(),
+                        voucherId, String.valueOf(admitRate), String.valueOf(admitBurst), now, String.valueOf(tokenTtl));
+            }
+        } catch (Exception e) {
+            log.error("秒杀排队放行失败", e);
+        }
+    }
+}
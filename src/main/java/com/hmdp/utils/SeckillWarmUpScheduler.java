@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀预热
+ * 定时扫描 tb_seckill_voucher 中即将开始或正在进行的秒杀券 开售前把准备工作做完:
+ * 1 Redis 中没有库存时(Redis 重启或被清空) 从数据库重建已购用户 库存和时间窗口
+ * 2 把秒杀相关的 lua 脚本提前 SCRIPT LOAD 第一次调用直接 EVALSHA
+ * 3 按 Redis 中的库存校正本地售罄标记 提前创建本地库存租约
+ * 4 PING 一次 Redis 确保连接已经建立
+ */
+@Slf4j
+@Component
+public class SeckillWarmUpScheduler {
+
+    private static final DefaultRedisScript<List> PRELOAD_SCRIPT;
+    private static final DefaultRedisScript<Long> CLAIM_SCRIPT;
+    static {
+        PRELOAD_SCRIPT = new DefaultRedisScript<>();
+        PRELOAD_SCRIPT.setLocation(new ClassPathResource("seckill_preload.lua"));
+        PRELOAD_SCRIPT.setResultType(List.class);
+        CLAIM_SCRIPT = SeckillScripts.withPurchaser("seckill_claim.lua", Long.class);
+    }
+
+    // 秒杀请求路径上用到的脚本 SHA 由脚本内容决定 这里按各处相同的方式加载 SCRIPT LOAD 后都能直接命中
+    private static final List<DefaultRedisScript<?>> SECKILL_SCRIPTS;
+    static {
+        DefaultRedisScript<List> lease = new DefaultRedisScript<>();
+        lease.setLocation(new ClassPathResource("seckill_lease.lua"));
+        lease.setResultType(List.class);
+        SECKILL_SCRIPTS = Arrays.asList(
+                SeckillScripts.withPurchaser("seckill.lua", Long.class),
+                SeckillScripts.withPurchaser("seckill_batch.lua", List.class),
+                lease,
+                SeckillScripts.withPurchaser("seckill_restock.lua", Long.class),
+                CLAIM_SCRIPT);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillStockLeaser seckillStockLeaser;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Value("${seckill.warmup.enabled:false}")
+    private boolean enabled;
+
+    // 提前多久开始预热(毫秒)
+    @Value("${seckill.warmup.ahead:600000}")
+    private long ahead;
+
+    // 重建已购用户时每次查询和写入的数量
+    @Value("${seckill.warmup.batch-size:1000}")
+    private int batchSize;
+
+    @Scheduled(initialDelayString = "${seckill.warmup.initial-delay:5000}",
+            fixedDelayString = "${seckill.warmup.interval:60000}")
+    public void warmUp() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            // 1 即将开始或正在进行的秒杀券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", now.plus(Duration.ofMillis(ahead)))
+                    .gt("end_time", now)
+                    .list();
+            if (vouchers.isEmpty()) {
+                return;
+            }
+            // 2 连接和脚本
+            stringRedisTemplate.execute((RedisCallback<String>) RedisConnection::ping);
+            loadScripts();
+            // 3 逐张券预热
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    warmUp(voucher);
+                } catch (Exception e) {
+                    log.error("秒杀券预热失败, voucherId = {}", voucher.getVoucherId(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热失败", e);
+        }
+    }
+
+    private void loadScripts() {
+        List<DefaultRedisScript<?>> scripts = new ArrayList<>(SECKILL_SCRIPTS);
+        scripts.addAll(SeckillStockShards.SCRIPTS);
+        for (DefaultRedisScript<?> script : scripts) {
+            byte[] body = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptLoad(body));
+        }
+    }
+
+    private void warmUp(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        long beginTime = toMillis(voucher.getBeginTime());
+        long endTime = toMillis(voucher.getEndTime());
+        // 分片库存只在新建券时写入 这里不重建 Redis 数据丢失读不到分片数时按普通库存重建
+        if (seckillStockShards.shards(voucherId) > 0) {
+            return;
+        }
+
+        // 1 Redis 中没有库存 由一个节点重建 其它节点等下一轮再校正本地状态
+        boolean loaded = false;
+        if (!hasStock(voucherId)) {
+            RLock lock = redissonClient.getLock("lock:seckill:warmup:" + voucherId);
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                loaded = reload(voucher, beginTime, endTime);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // 2 读取 Redis 中的库存 库存已存在时脚本不会覆盖
+        List<?> result = stringRedisTemplate.execute(
+                PRELOAD_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), voucher.getStock().toString(), String.valueOf(beginTime), String.valueOf(endTime));
+        long stock = result == null ? 0 : Long.parseLong(result.get(1).toString());
+
+        // 3 本地状态 重新加载过库存时广播清除其它节点的售罄标记
+        if (loaded) {
+            seckillSoldOutRegistry.clear(voucherId);
+        } else if (stock > 0) {
+            seckillSoldOutRegistry.clearLocal(voucherId);
+        } else {
+            seckillSoldOutRegistry.markSoldOutLocal(voucherId);
+        }
+        seckillStockLeaser.prepare(voucherId, beginTime, endTime);
+    }
+
+    private boolean hasStock(Long voucherId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId));
+    }
+
+    // 先重建已购用户 再写入库存 库存出现时一人一单的数据已经完整
+    private boolean reload(SeckillVoucher voucher, long beginTime, long endTime) {
+        Long voucherId = voucher.getVoucherId();
+        if (hasStock(voucherId)) {
+            // 拿到锁之前其它节点已经重建完了
+            return false;
+        }
+        // 1 按主键分页读取已购用户
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + batchSize)
+                    .list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            List<String> args = new ArrayList<>(orders.size() + 1);
+            args.add(voucherId.toString());
+            for (VoucherOrder order : orders) {
+                args.add(order.getUserId().toString());
+            }
+            stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.emptyList(), args.toArray());
+            total += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+        // 2 写入库存和时间窗口
+        List<?> result = stringRedisTemplate.execute(
+                PRELOAD_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(), voucher.getStock().toString(), String.valueOf(beginTime), String.valueOf(endTime));
+        boolean loaded = result != null && Long.parseLong(result.get(0).toString()) == 1;
+        if (loaded) {
+            log.info("秒杀券预热 重新加载库存, voucherId = {}, stock = {}, purchasers = {}",
+                    voucherId, voucher.getStock(), total);
+        }
+        return loaded;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
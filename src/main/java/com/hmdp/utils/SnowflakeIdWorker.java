@@ -0,0 +1,200 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+
+/**
+ * 雪花算法 id 生成器 生成 id 完全在本地 不需要网络 io
+ * 1 bit 符号 + 31 bit 秒级时间戳 + 1 bit 雪花标志 + 10 bit 秒内毫秒 + 9 bit 机器id + 12 bit 毫秒内序列号
+ * 高 32 位和 RedisIdWorker 一样是秒级时间戳 低 32 位的最高位固定为 1
+ * RedisIdWorker 的计数器限制在 2^31 以内 最高位固定为 0 两者的 id 空间不相交 id.generator 可以随时切换
+ * 机器id 启动时从 redis 租借 id:worker:{n} 由独立线程定时续期 关闭时归还
+ * 距离上次续期成功超过 lease-ttl 时租约可能已被其它节点租走 拒绝生成 id
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "id.generator", havingValue = "snowflake")
+public class SnowflakeIdWorker {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int WORKER_BITS = 9;
+    private static final int SEQUENCE_BITS = 12;
+    // 低 32 位的最高位 和 RedisIdWorker 的计数器区分开
+    private static final long SNOWFLAKE_FLAG = 1L << 31;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 机器id 租约的过期时间(秒)
+    @Value("${id.snowflake.lease-ttl:30}")
+    private long leaseTtl;
+
+    // 续期间隔(毫秒) 要明显小于 lease-ttl
+    @Value("${id.snowflake.heartbeat-interval:10000}")
+    private long heartbeatInterval;
+
+    // 允许等待的最大时钟回拨(毫秒) 超过直接报错
+    @Value("${id.snowflake.max-backward-ms:5}")
+    private long maxBackwardMs;
+
+    // 当前节点的租约标识
+    private final String token = UUID.randomUUID().toString(true);
+
+    // 和 RedisIdWorker 一致 时间戳按本地时间计算 启动时固定时区偏移
+    private final long zoneOffsetMs = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+
+    private volatile long workerId = -1;
+    // 最近一次租借或续期成功的时间 取发出请求前的时间 System.nanoTime 不受时钟回拨影响
+    private volatile long leasedNanos;
+    private long lastMillis = -1;
+    private long sequence;
+
+    // 续期使用独立线程 不和其它 @Scheduled 任务抢同一个调度线程
+    private ScheduledExecutorService heartbeatExecutor;
+
+    @PostConstruct
+    public void init() {
+        leaseWorkerId();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "id-worker-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        long id = workerId;
+        if (id >= 0) {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(ID_WORKER_KEY + id), token);
+        }
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    // keyPrefix 只为和 RedisIdWorker 保持相同的调用方式 雪花 id 本身全局唯一
+    public synchronized long nextId(String keyPrefix) {
+        // 0 租约可能已经过期 机器id 可能被其它节点使用 拒绝生成 id
+        long sinceLeased = System.nanoTime() - leasedNanos;
+        if (sinceLeased >= TimeUnit.SECONDS.toNanos(leaseTtl)) {
+            throw new IllegalStateException("机器id 租约已过期 " + TimeUnit.NANOSECONDS.toMillis(sinceLeased)
+                    + "ms 未续期, 拒绝生成 id, workerId = " + workerId);
+        }
+        long now = currentMillis();
+        // 1 时钟回拨 小幅回拨等时钟追上 大幅回拨直接报错 避免生成重复 id
+        if (now < lastMillis) {
+            long backward = lastMillis - now;
+            if (backward > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨 " + backward + "ms, 拒绝生成 id");
+            }
+            now = waitUntilAfter(lastMillis - 1);
+        }
+        // 2 同一毫秒内序列号自增 用完了等下一毫秒
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitUntilAfter(lastMillis);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+
+        // 3 拼接: 秒级时间戳 << 32 | 雪花标志 | 秒内毫秒 << 21 | 机器id << 12 | 序列号
+        long timestamp = now / 1000 - BEGIN_TIMESTAMP;
+        long millisOfSecond = now % 1000;
+        return timestamp << 32
+                | SNOWFLAKE_FLAG
+                | millisOfSecond << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long currentMillis() {
+        return System.currentTimeMillis() + zoneOffsetMs;
+    }
+
+    private long waitUntilAfter(long millis) {
+        long now = currentMillis();
+        while (now <= millis) {
+            Thread.yield();
+            now = currentMillis();
+        }
+        return now;
+    }
+
+    // 定时续期 续期失败说明租约已经丢了 重新租借一个机器id
+    private void heartbeat() {
+        long id = workerId;
+        long start = System.nanoTime();
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(ID_WORKER_KEY + id), token, String.valueOf(leaseTtl));
+            if (renewed == null || renewed == 0) {
+                log.warn("机器id 租约已失效, 重新租借, workerId = {}", id);
+                leaseWorkerId();
+                return;
+            }
+            leasedNanos = start;
+        } catch (Exception e) {
+            // redis 暂时不可用时在租约有效期内继续使用当前机器id 过期后 nextId 拒绝生成
+            log.error("机器id 续期失败, workerId = {}", id, e);
+        }
+    }
+
+    // 从随机位置开始依次尝试 SET NX 直到租到一个空闲的机器id
+    private synchronized void leaseWorkerId() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int id = (start + i) & MAX_WORKER_ID;
+            long requestNanos = System.nanoTime();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, token, leaseTtl, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(ok)) {
+                workerId = id;
+                leasedNanos = requestNanos;
+                log.info("租借到机器id, workerId = {}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的机器id");
+    }
+}
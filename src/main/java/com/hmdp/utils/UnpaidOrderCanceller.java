@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+
+/**
+ * 超时未支付订单自动取消
+ * 订单落库后登记一个定时: ZADD order:timeout 截止时间 订单id 同时放进本地分层时间轮
+ * 时间轮只有一个推进线程 百万级的定时也不需要每个订单一个线程或一个延时消息
+ * 到期的订单攒成一批 先在 order:timeout 中原子地认领 只处理认领到的订单
+ * 一个事务把仍未支付的订单改为已取消并归还数据库库存 提交后再归还 Redis 库存
+ * 节点重启后从 order:timeout 分页加载所有定时 已经过期的立即处理 其它节点登记的定时也会加载 由认领去重
+ * 认领只是把截止时间推后一个租期(retry-delay) 认领的节点宕机时定时不会丢
+ * 多个节点处理同一个订单时 只有把状态从未支付改成已取消的那个节点会归还库存
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+
+    private static final DefaultRedisScript<Long> RESTOCK_SCRIPT;
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+    static {
+        RESTOCK_SCRIPT = SeckillScripts.withPurchaser("seckill_restock.lua", Long.class);
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_timeout_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${seckill.order.cancel.enabled:false}")
+    private boolean enabled;
+
+    // 下单后多久未支付自动取消(毫秒)
+    @Value("${seckill.order.cancel.timeout:900000}")
+    private long timeout;
+
+    // 时间轮第一层每格的时长(毫秒) 也是取消的时间精度
+    @Value("${seckill.order.cancel.tick:1000}")
+    private long tick;
+
+    // 时间轮每层的格数
+    @Value("${seckill.order.cancel.wheel-size:60}")
+    private int wheelSize;
+
+    // 每批取消的订单数 也是启动时从 order:timeout 每页加载的数量
+    @Value("${seckill.order.cancel.batch-size:500}")
+    private int batchSize;
+
+    // 取消失败后多久再试(毫秒)
+    @Value("${seckill.order.cancel.retry-delay:5000}")
+    private long retryDelay;
+
+    private HierarchicalTimingWheel<Long> wheel;
+    private Counter cancelledCounter;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        wheel = new HierarchicalTimingWheel<>("order-cancel", tick, wheelSize, batchSize, this::cancel);
+        cancelledCounter = meterRegistry.counter("seckill.order.cancelled");
+        Gauge.builder("seckill.order.cancel.pending", wheel, HierarchicalTimingWheel::size)
+                .description("时间轮中等待取消的订单数")
+                .register(meterRegistry);
+        load();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (wheel != null) {
+            wheel.shutdown();
+        }
+    }
+
+    // 订单落库后登记超时取消 同一订单重复登记只会覆盖截止时间
+    public void schedule(List<VoucherOrder> voucherOrders) {
+        if (!enabled || voucherOrders.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        Set<ZSetOperations.TypedTuple<String>> tuples = new HashSet<>(voucherOrders.size());
+        for (VoucherOrder order : voucherOrders) {
+            tuples.add(new DefaultTypedTuple<>(order.getId().toString(), (double) deadline));
+        }
+        try {
+            stringRedisTemplate.opsForZSet().add(ORDER_TIMEOUT_KEY, tuples);
+        } catch (Exception e) {
+            // 没有登记的定时认领不到 这些订单不会自动取消 留给人工处理
+            log.error("登记订单超时失败, size = {}", voucherOrders.size(), e);
+            return;
+        }
+        for (VoucherOrder order : voucherOrders) {
+            wheel.add(order.getId(), deadline);
+        }
+    }
+
+    // 启动时按截止时间分页加载 其它节点登记的订单也会加载 重复取消由订单状态判断
+    private void load() {
+        long offset = 0;
+        int total = 0;
+        while (true) {
+            Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                    .rangeWithScores(ORDER_TIMEOUT_KEY, offset, offset + batchSize - 1);
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : page) {
+                if (tuple.getValue() != null && tuple.getScore() != null) {
+                    wheel.add(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+                }
+            }
+            total += page.size();
+            offset += page.size();
+        }
+        log.info("加载未支付订单定时, size = {}", total);
+    }
+
+    // 时间轮推进线程回调 一批到期的订单
+    private void cancel(List<Long> expired) {
+        List<Long> orderIds;
+        try {
+            // 1 认领定时 其它节点已经认领或已经处理完的订单跳过
+            orderIds = claim(expired);
+        } catch (Exception e) {
+            log.error("认领订单定时失败, {}ms 后重试, size = {}", retryDelay, expired.size(), e);
+            long deadline = System.currentTimeMillis() + retryDelay;
+            for (Long orderId : expired) {
+                wheel.add(orderId, deadline);
+            }
+            return;
+        }
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        List<VoucherOrder> cancelled;
+        try {
+            // 2 一个事务取消仍未支付的订单 归还数据库库存
+            cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        } catch (Exception e) {
+            log.error("取消未支付订单失败, {}ms 后重试, size = {}", retryDelay, orderIds.size(), e);
+            // 认领的租期过了才能重新认领
+            long deadline = System.currentTimeMillis() + retryDelay + tick;
+            for (Long orderId : orderIds) {
+                wheel.add(orderId, deadline);
+            }
+            return;
+        }
+        // 3 事务已提交 按券归还 Redis 库存
+        // 已购用户保留 已取消的订单仍在 uk_user_voucher 中 用户不能再次下单
+        Map<Long, Long> countByVoucher = cancelled.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, count) -> {
+            try {
+                int shards = seckillStockShards.shards(voucherId);
+                if (shards > 0) {
+                    seckillStockShards.restock(voucherId, shards, null, count);
+                } else {
+                    stringRedisTemplate.execute(RESTOCK_SCRIPT, Collections.emptyList(),
+                            voucherId.toString(), count.toString(), "");
+                }
+                seckillSoldOutRegistry.clear(voucherId);
+            } catch (Exception e) {
+                // 少还的库存留给对账任务处理
+                log.error("归还 Redis 库存失败, voucherId = {}, count = {}", voucherId, count, e);
+            }
+        });
+        // 4 已支付和已取消的订单都不再需要定时
+        try {
+            stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY,
+                    orderIds.stream().map(String::valueOf).toArray());
+        } catch (Exception e) {
+            log.error("移除订单定时失败, size = {}", orderIds.size(), e);
+        }
+        cancelledCounter.increment(cancelled.size());
+        if (!cancelled.isEmpty()) {
+            log.info("取消未支付订单, expired = {}, claimed = {}, cancelled = {}",
+                    expired.size(), orderIds.size(), cancelled.size());
+        }
+    }
+
+    private List<Long> claim(List<Long> expired) {
+        List<String> args = new ArrayList<>(expired.size() + 2);
+        // 时间轮按槽触发 最多提前一格 按一格的精度放宽到期判断
+        args.add(String.valueOf(System.currentTimeMillis() + tick));
+        args.add(String.valueOf(retryDelay));
+        for (Long orderId : expired) {
+            args.add(orderId.toString());
+        }
+        List<?> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, Collections.emptyList(), args.toArray());
+        if (claimed == null) {
+            return Collections.emptyList();
+        }
+        return claimed.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList());
+    }
+}
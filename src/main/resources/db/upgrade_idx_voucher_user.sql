@@ -0,0 +1,9 @@
+-- ----------------------------
+-- 已有库升级: tb_voucher_order 增加索引 idx_voucher_user
+-- 新建库直接使用 hmdp.sql 不需要执行
+-- 对账任务按 voucher_id 统计订单数 按 voucher_id + user_id 查询订单 没有这个索引会全表扫描
+-- ----------------------------
+
+ALTER TABLE `tb_voucher_order`
+  ADD INDEX `idx_voucher_user`(`voucher_id`, `user_id`) USING BTREE,
+  ALGORITHM = INPLACE, LOCK = NONE;
@@ -0,0 +1,16 @@
+-- ----------------------------
+-- 已有库升级: tb_voucher_order 增加一人一单唯一索引 uk_user_voucher
+-- 新建库直接使用 hmdp.sql 不需要执行
+-- seckill.order.unique-insert 和 DuplicateKeyException 去重都依赖这个索引 开启前先执行
+-- ----------------------------
+
+-- 1 检查已有的重复订单 有结果时先人工处理 否则第 2 步会失败
+SELECT `user_id`, `voucher_id`, COUNT(*) AS `orders`
+FROM `tb_voucher_order`
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- 2 增加唯一索引 MySQL 5.6 起支持在线加索引 不锁写
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE,
+  ALGORITHM = INPLACE, LOCK = NONE;
@@ -0,0 +1,6 @@
+-- 比较租约标识 和 当前节点的标识 是否一致
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    -- 一致则续期
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,22 @@
+-- 批量写入订单状态 最终状态同时发布到 order:status 频道 唤醒长轮询
+--1 参数列表
+--1.1 状态 PENDING / CREATED / FAILED
+local status = ARGV[1]
+--1.2 过期时间(秒)
+local ttl = ARGV[2]
+--1.3 之后每两个参数为一个订单: 订单id 用户id
+
+for i = 3, #ARGV, 2 do
+    local orderID = ARGV[i]
+    -- 值为 状态:用户id 查询时校验订单属于当前用户
+    local key = 'order:status:' .. orderID
+    local value = status .. ':' .. ARGV[i + 1]
+    if(status == 'PENDING') then
+        -- 消费者可能已经写入了最终状态 PENDING 不能覆盖
+        redis.call('set', key, value, 'EX', ttl, 'NX')
+    else
+        redis.call('set', key, value, 'EX', ttl)
+        redis.call('publish', 'order:status', orderID .. ':' .. status)
+    end
+end
+return 0
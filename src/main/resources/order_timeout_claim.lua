@@ -0,0 +1,20 @@
+-- 认领到期的未支付订单定时 多个节点的时间轮里有同一个订单时只有一个节点认领成功
+-- 认领不删除定时 把截止时间推后一个租期 认领的节点宕机后定时还在 重启加载后重新处理 取消完成后再删除
+--1 参数列表
+--1.1 当前时间 毫秒
+local now = tonumber(ARGV[1])
+--1.2 租期 毫秒
+local lease = tonumber(ARGV[2])
+--1.3 之后的参数都是订单id
+
+local key = 'order:timeout'
+local claimed = {}
+for i = 3, #ARGV do
+    local score = redis.call('zscore', key, ARGV[i])
+    -- 定时已经删除(其它节点取消完成)或者还没到期(其它节点已经认领) 跳过
+    if(score and tonumber(score) <= now) then
+        redis.call('zadd', key, now + lease, ARGV[i])
+        claimed[#claimed + 1] = ARGV[i]
+    end
+end
+return claimed
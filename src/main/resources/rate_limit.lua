@@ -0,0 +1,31 @@
+--1 参数列表
+--1.1 当前时间(毫秒)
+local now = tonumber(ARGV[1])
+--1.2 本次检查的规则数 后面每条规则三个参数: key 窗口内请求数上限 窗口长度(毫秒)
+local n = tonumber(ARGV[2])
+
+-- 滑动窗口计数: 当前固定窗口的计数 + 上一个窗口的计数按未过去的比例折算
+-- 每个 key 只保存两个计数器 不用记录每个请求的时间
+local keys = {}
+for i = 1, n do
+    local base = (i - 1) * 3 + 2
+    local key = 'rate:' .. ARGV[base + 1]
+    local limit = tonumber(ARGV[base + 2])
+    local window = tonumber(ARGV[base + 3])
+    local index = math.floor(now / window)
+    local elapsed = (now - index * window) / window
+    local prev = tonumber(redis.call('get', key .. ':' .. (index - 1))) or 0
+    local cur = tonumber(redis.call('get', key .. ':' .. index)) or 0
+    --2 任何一条规则超限 整个请求拒绝 返回规则序号 不计数
+    if(prev * (1 - elapsed) + cur >= limit) then
+        return i
+    end
+    keys[i] = {key .. ':' .. index, window}
+end
+
+--3 全部通过 当前窗口计数加一
+for i = 1, n do
+    redis.call('incr', keys[i][1])
+    redis.call('pexpire', keys[i][1], keys[i][2] * 2)
+end
+return 0
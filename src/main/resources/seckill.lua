@@ -3,27 +3,34 @@
 local voucherId = ARGV[1]
 --1.2 用户id
 local userID = ARGV[2]
---1.3 订单id
+--1.3 订单id 使用 stream 队列时传入 为空时不入队
 local orderID = ARGV[3]
-
-
+--1.4 当前时间 毫秒
+local now = tonumber(ARGV[4])
+--1.5 订单状态的过期时间(秒) 入队时同时写入 PENDING
+local statusTtl = ARGV[5]
 
 --2 数据key
 --2.1 库存key
 local stockKey = 'seckill:stock:' .. voucherId
---2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+--2.2 元数据 seckill:meta:{id} 记录已购用户存储方式 秒杀时间窗口 时间窗口判断和已购用户读写见 seckill_purchaser.lua
+local purchaser, meta = purchaserMeta(voucherId, 'begin', 'end')
 
 -- 3 脚本业务
--- 3.1 判断库存是否充足
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+-- 3.0 判断秒杀是否开始 是否已经结束
+local window = checkWindow(now, meta[5], meta[6])
+if(window ~= 0) then
+    return window
+end
+-- 3.1 判断库存是否充足 没有库存key(未预热或不存在的券)按库存不足处理
+if(tonumber(redis.call('get', stockKey) or 0) <= 0) then
     -- 3.2 库存不足 返回1
     return 1
 end
 
 
 -- 3.2 判断用户是否已经下过单
-if(redis.call('sismember', orderKey, userID) == 1) then
+if(isPurchaser(purchaser, userID)) then
     -- 3.3 存在 说明是重复下单 返回2
     return 2
 end
@@ -31,9 +38,12 @@ end
 -- 3.4 扣库存 stockKey + (-1)
 redis.call('incrby', stockKey, -1)
 -- 3.5 下单 保存用户
-redis.call('sadd', orderKey, userID)
+addPurchaser(purchaser, userID)
 -- 3.6 发送消息到队列中
--- redis.call('xadd', 'streams.orders', '*', 'userId', userID, 'voucherId', voucherId, 'id', orderID)
+-- 近似裁剪到 100 万条 已确认的旧消息不会无限堆积 和 RedisConstants.SECKILL_ORDER_STREAM_MAXLEN 一致
+if(orderID ~= nil and orderID ~= '') then
+    redis.call('xadd', 'streams.orders', 'MAXLEN', '~', 1000000, '*', 'userId', userID, 'voucherId', voucherId, 'id', orderID)
+    -- 3.7 订单状态记为 PENDING 格式见 order_status.lua 消费者可能已经写入了最终状态 不能覆盖
+    redis.call('set', 'order:status:' .. orderID, 'PENDING:' .. userID, 'EX', statusTtl, 'NX')
+end
 return 0
-
-
@@ -0,0 +1,57 @@
+-- 批量秒杀脚本 一次执行多个用户的购买请求 逐个判断资格
+-- 每个请求的判断逻辑和 seckill.lua 完全一致 返回每个请求的结果数组
+--1 参数列表
+--1.1 请求数量
+local n = tonumber(ARGV[1])
+--1.2 当前时间 毫秒 整批共用
+local now = tonumber(ARGV[2])
+--1.3 订单状态的过期时间(秒) 入队时同时写入 PENDING
+local statusTtl = ARGV[3]
+--1.4 之后每三个参数为一个请求: 优惠券id 用户id 订单id(使用 stream 队列时传入 为空时不入队)
+
+-- 判断单个请求的购买资格 0 成功 1 库存不足 2 重复下单 3 未开始 4 已结束 5 请求不合法
+local function seckill(voucherId, userID, orderID)
+    -- 参数不合法只让这一个请求失败 不能抛错 否则前面已经扣过库存的请求拿不到结果
+    if(tonumber(voucherId) == nil or tonumber(userID) == nil) then
+        return 5
+    end
+    local stockKey = 'seckill:stock:' .. voucherId
+    local purchaser, meta = purchaserMeta(voucherId, 'begin', 'end')
+
+    -- 判断秒杀时间窗口 checkWindow 见 seckill_purchaser.lua
+    local window = checkWindow(now, meta[5], meta[6])
+    if(window ~= 0) then
+        return window
+    end
+
+    -- 判断库存是否充足 没有库存key按库存不足处理
+    if(tonumber(redis.call('get', stockKey) or 0) <= 0) then
+        return 1
+    end
+
+    -- 判断用户是否已经下过单
+    if(isPurchaser(purchaser, userID)) then
+        return 2
+    end
+
+    -- 扣库存 保存用户
+    redis.call('incrby', stockKey, -1)
+    addPurchaser(purchaser, userID)
+    -- 发送消息到队列中
+    -- 近似裁剪到 100 万条 已确认的旧消息不会无限堆积 和 RedisConstants.SECKILL_ORDER_STREAM_MAXLEN 一致
+    if(orderID ~= nil and orderID ~= '') then
+        redis.call('xadd', 'streams.orders', 'MAXLEN', '~', 1000000, '*', 'userId', userID, 'voucherId', voucherId, 'id', orderID)
+        -- 订单状态记为 PENDING 格式见 order_status.lua 不覆盖最终状态
+        redis.call('set', 'order:status:' .. orderID, 'PENDING:' .. userID, 'EX', statusTtl, 'NX')
+    end
+    return 0
+end
+
+local results = {}
+for i = 1, n do
+    local base = (i - 1) * 3 + 3
+    -- 兜底: 单个请求执行出错时返回5 其它请求照常执行
+    local ok, result = pcall(seckill, ARGV[base + 1], ARGV[base + 2], ARGV[base + 3])
+    results[i] = ok and result or 5
+end
+return results
@@ -0,0 +1,13 @@
+-- 批量判断用户是否在已购用户中 按券的存储方式读取 返回和用户顺序一致的 0/1 数组
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 之后的参数都是用户id
+
+-- 已购用户读写见 seckill_purchaser.lua
+local purchaser = purchaserMeta(voucherId)
+local results = {}
+for i = 2, #ARGV do
+    results[i - 1] = isPurchaser(purchaser, ARGV[i]) and 1 or 0
+end
+return results
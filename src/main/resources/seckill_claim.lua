@@ -0,0 +1,15 @@
+-- 登记已购用户 按券的存储方式写入 返回新增的用户数 只传一个用户时 1 新增 0 已存在
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 之后的参数都是用户id
+
+-- 已购用户读写见 seckill_purchaser.lua
+local purchaser = purchaserMeta(voucherId)
+local added = 0
+for i = 2, #ARGV do
+    if(addPurchaser(purchaser, ARGV[i])) then
+        added = added + 1
+    end
+end
+return added
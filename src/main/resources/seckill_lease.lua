@@ -0,0 +1,28 @@
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 本次想要租借的库存数量
+local want = tonumber(ARGV[2])
+--1.3 当前时间 毫秒
+local now = tonumber(ARGV[3])
+
+--2 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+
+-- 3 秒杀时间窗口一起返回 节点用本地的租约库存时自己判断时间 不再访问 Redis
+local meta = redis.call('hmget', metaKey, 'begin', 'end')
+local beginTime = meta[1] or '0'
+local endTime = meta[2] or '0'
+if(now ~= nil and ((meta[1] and now < tonumber(meta[1])) or (meta[2] and now > tonumber(meta[2])))) then
+    return {0, beginTime, endTime}
+end
+
+-- 4 一次原子操作尽量凑够 want 个库存 返回实际租到的数量和时间窗口
+local taken = 0
+local stock = tonumber(redis.call('get', stockKey) or 0)
+if(stock > 0) then
+    taken = math.min(stock, want)
+    redis.call('incrby', stockKey, -taken)
+end
+return {taken, beginTime, endTime}
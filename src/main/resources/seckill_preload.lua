@@ -0,0 +1,30 @@
+-- 预热秒杀库存 库存已经在 Redis 中时不覆盖
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 数据库中的库存
+local stock = ARGV[2]
+--1.3 秒杀开始时间 毫秒时间戳 为空时不限制
+local beginTime = ARGV[3]
+--1.4 秒杀结束时间 毫秒时间戳 为空时不限制
+local endTime = ARGV[4]
+
+--2 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:meta:' .. voucherId
+
+-- 3 库存已经存在 返回 {0, 当前库存}
+local current = redis.call('get', stockKey)
+if(current) then
+    return {0, tonumber(current)}
+end
+
+-- 4 库存不存在 写入库存和时间窗口 返回 {1, 库存}
+redis.call('set', stockKey, stock)
+if(beginTime ~= nil and beginTime ~= '') then
+    redis.call('hset', metaKey, 'begin', beginTime)
+end
+if(endTime ~= nil and endTime ~= '') then
+    redis.call('hset', metaKey, 'end', endTime)
+end
+return {1, tonumber(stock)}
@@ -0,0 +1,84 @@
+-- 秒杀脚本公用函数 由 SeckillScripts 拼接到 seckill / seckill_batch / seckill_claim / seckill_restock / seckill_check 脚本前面
+-- 包括秒杀时间窗口判断和已购用户读写 公用逻辑只在这里维护一份
+-- 已购用户的存储方式 由 seckill:meta:{id} 的 encoding 字段决定
+-- set(默认): SADD 用户id 到 seckill:order:{id}
+-- bitmap: 以 用户id - base 为偏移量 SETBIT seckill:order:{id} 偏移量只在 [0, range) 内 bitmap 最大 range / 8 字节
+--         范围外的用户id 放到 seckill:order:{id}:overflow 集合 没有 base/range 时全部放到集合
+-- bucket: 用户id 按 buckets 取模分桶 HSET seckill:order:{id}:{桶号} 每个桶是一个很小的 hash
+
+-- 判断秒杀时间窗口 begin/end 为毫秒时间戳 未开始返回3 已结束返回4 没有配置时不限制
+local function checkWindow(now, beginTime, endTime)
+    if(now == nil) then
+        return 0
+    end
+    if(beginTime and now < tonumber(beginTime)) then
+        return 3
+    end
+    if(endTime and now > tonumber(endTime)) then
+        return 4
+    end
+    return 0
+end
+
+-- 读取券的已购用户存储方式 额外的字段名跟在后面 一次 HMGET 读出 返回 存储方式, 所有字段的值
+local function purchaserMeta(voucherId, ...)
+    local meta = redis.call('hmget', 'seckill:meta:' .. voucherId, 'encoding', 'buckets', 'base', 'range', ...)
+    local p = {
+        orderKey = 'seckill:order:' .. voucherId,
+        encoding = meta[1],
+        buckets = tonumber(meta[2]),
+        base = tonumber(meta[3]) or 0,
+        range = tonumber(meta[4]) or 0
+    }
+    -- 分桶数不合法时退化为 set 不让取模出错
+    if(p.encoding == 'bucket' and (p.buckets == nil or p.buckets <= 0)) then
+        p.encoding = nil
+    end
+    return p, meta
+end
+
+local function purchaserKey(p, userID)
+    if(p.encoding == 'bitmap') then
+        local bit = tonumber(userID) - p.base
+        if(bit >= 0 and bit < p.range) then
+            return p.orderKey, bit
+        end
+        return p.orderKey .. ':overflow', nil
+    elseif(p.encoding == 'bucket') then
+        return p.orderKey .. ':' .. (tonumber(userID) % p.buckets), nil
+    end
+    return p.orderKey, nil
+end
+
+local function isPurchaser(p, userID)
+    local key, bit = purchaserKey(p, userID)
+    if(bit ~= nil) then
+        return redis.call('getbit', key, bit) == 1
+    elseif(p.encoding == 'bucket') then
+        return redis.call('hexists', key, userID) == 1
+    end
+    return redis.call('sismember', key, userID) == 1
+end
+
+-- 新增已购用户 返回 true 表示之前不存在
+local function addPurchaser(p, userID)
+    local key, bit = purchaserKey(p, userID)
+    if(bit ~= nil) then
+        return redis.call('setbit', key, bit, 1) == 0
+    elseif(p.encoding == 'bucket') then
+        return redis.call('hsetnx', key, userID, 1) == 1
+    end
+    return redis.call('sadd', key, userID) == 1
+end
+
+local function removePurchaser(p, userID)
+    local key, bit = purchaserKey(p, userID)
+    if(bit ~= nil) then
+        redis.call('setbit', key, bit, 0)
+    elseif(p.encoding == 'bucket') then
+        redis.call('hdel', key, userID)
+    else
+        redis.call('srem', key, userID)
+    end
+end
+
@@ -0,0 +1,22 @@
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 归还的库存数量
+local count = tonumber(ARGV[2])
+--1.3 用户id 可选 传了就把该用户从已购集合中移除
+local userID = ARGV[3]
+
+--2 数据key
+local stockKey = 'seckill:stock:' .. voucherId
+
+-- 3 归还库存
+if(count > 0) then
+    redis.call('incrby', stockKey, count)
+end
+
+-- 4 移除已购用户
+-- 已购用户读写见 seckill_purchaser.lua
+if(userID ~= nil and userID ~= '') then
+    removePurchaser(purchaserMeta(voucherId), userID)
+end
+return count
@@ -0,0 +1,40 @@
+-- 分片库存券的秒杀 只访问用户归属分片的 key 两个 key 带同一个 hash tag {voucherId:分片号} 集群下在同一个 slot
+--1 参数列表
+--1.1 分片 hash seckill:shard:{voucherId:i} 字段 stock begin end
+local shardKey = KEYS[1]
+--1.2 归属这个分片的已购用户集合 seckill:order:{voucherId:i}
+local orderKey = KEYS[2]
+--1.3 用户id
+local userID = ARGV[1]
+--1.4 当前时间 毫秒
+local now = tonumber(ARGV[2])
+
+-- 2 分片不存在(Redis 数据丢失) 返回5
+local shard = redis.call('hmget', shardKey, 'stock', 'begin', 'end')
+if(not shard[1]) then
+    return 5
+end
+
+-- 3 判断秒杀是否开始 是否已经结束 未开始返回3 已结束返回4
+if(now ~= nil and shard[2] and now < tonumber(shard[2])) then
+    return 3
+end
+if(now ~= nil and shard[3] and now > tonumber(shard[3])) then
+    return 4
+end
+
+-- 4 用户只登记在归属分片上 存在说明是重复下单 返回2
+if(redis.call('sismember', orderKey, userID) == 1) then
+    return 2
+end
+
+-- 5 归属分片有库存 扣库存 保存用户 返回0
+if(tonumber(shard[1]) > 0) then
+    redis.call('hincrby', shardKey, 'stock', -1)
+    redis.call('sadd', orderKey, userID)
+    return 0
+end
+
+-- 6 归属分片没有库存 先登记用户占住一人一单 返回6 由调用方去其它分片扣库存 扣不到再撤销登记
+redis.call('sadd', orderKey, userID)
+return 6
@@ -0,0 +1,21 @@
+-- 归还分片库存 并把用户从归属分片的已购用户中移除
+--1 参数列表
+--1.1 用户归属分片的 hash seckill:shard:{voucherId:i}
+local shardKey = KEYS[1]
+--1.2 归属分片的已购用户集合 seckill:order:{voucherId:i}
+local orderKey = KEYS[2]
+--1.3 归还的库存数量
+local count = tonumber(ARGV[1])
+--1.4 用户id 可选 传了就把该用户从已购集合中移除
+local userID = ARGV[2]
+
+-- 2 归还库存 分片已经不存在时不重新创建
+if(count > 0 and redis.call('exists', shardKey) == 1) then
+    redis.call('hincrby', shardKey, 'stock', count)
+end
+
+-- 3 移除已购用户
+if(userID ~= nil and userID ~= '') then
+    redis.call('srem', orderKey, userID)
+end
+return count
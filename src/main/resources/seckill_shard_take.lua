@@ -0,0 +1,11 @@
+-- 从一个分片扣一件库存 用户已经登记在归属分片上 这里只扣库存
+--1 参数列表
+--1.1 分片 hash seckill:shard:{voucherId:i}
+local shardKey = KEYS[1]
+
+-- 2 有库存扣减返回1 没有返回0
+if(tonumber(redis.call('hget', shardKey, 'stock') or 0) > 0) then
+    redis.call('hincrby', shardKey, 'stock', -1)
+    return 1
+end
+return 0
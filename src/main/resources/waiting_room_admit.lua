@@ -0,0 +1,51 @@
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 每秒放行人数
+local rate = tonumber(ARGV[2])
+--1.3 一次最多放行人数
+local burst = tonumber(ARGV[3])
+--1.4 当前时间(毫秒)
+local now = tonumber(ARGV[4])
+--1.5 购买凭证有效期(毫秒)
+local ttl = tonumber(ARGV[5])
+
+--2 数据key
+local queueKey = 'seckill:waiting:' .. voucherId
+local admittedKey = 'seckill:admitted:' .. voucherId
+local lastKey = 'seckill:waiting:' .. voucherId .. ':last'
+local activeKey = 'seckill:waiting:active'
+
+--3 按上次放行到现在的时间计算本次放行人数 多个节点同时调度也不会超过总速率
+local last = tonumber(redis.call('get', lastKey))
+if(last == nil) then
+    last = now - 1000
+end
+local count = math.floor((now - last) * rate / 1000)
+if(count <= 0) then
+    return 0
+end
+if(count >= burst) then
+    count = burst
+    last = now
+else
+    last = last + math.floor(count * 1000 / rate)
+end
+redis.call('set', lastKey, last, 'PX', 60000)
+
+--4 从队头放行 记录凭证过期时间
+local popped = redis.call('zpopmin', queueKey, count)
+local admitted = 0
+for i = 1, #popped, 2 do
+    redis.call('hset', admittedKey, popped[i], now + ttl)
+    admitted = admitted + 1
+end
+if(admitted > 0) then
+    redis.call('pexpire', admittedKey, ttl * 2)
+end
+
+--5 队列空了 不再调度这张券
+if(redis.call('zcard', queueKey) == 0) then
+    redis.call('srem', activeKey, voucherId)
+end
+return admitted
@@ -0,0 +1,30 @@
+--1 参数列表
+--1.1 优惠券id
+local voucherId = ARGV[1]
+--1.2 用户id
+local userID = ARGV[2]
+--1.3 当前时间(毫秒)
+local now = tonumber(ARGV[3])
+
+--2 数据key
+--2.1 排队队列 zset 按进入时间排序
+local queueKey = 'seckill:waiting:' .. voucherId
+--2.2 已放行用户 hash 用户id -> 购买凭证过期时间
+local admittedKey = 'seckill:admitted:' .. voucherId
+--2.3 有人排队的券
+local activeKey = 'seckill:waiting:active'
+
+--3 已经放行且凭证未过期 返回过期时间
+local expireAt = tonumber(redis.call('hget', admittedKey, userID))
+if(expireAt ~= nil) then
+    if(expireAt > now) then
+        return {-1, expireAt}
+    end
+    -- 凭证过期没有使用 重新排到队尾
+    redis.call('hdel', admittedKey, userID)
+end
+
+--4 排队 已经在队列中时保留原来的位置
+redis.call('zadd', queueKey, 'NX', now, userID)
+redis.call('sadd', activeKey, voucherId)
+return {redis.call('zrank', queueKey, userID), 0}
@@ -13,6 +13,10 @@ import javax.annotation.Resource;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -21,6 +25,9 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -48,22 +55,48 @@ class HmDianPingApplicationTests {
 
     @Test
     void testIdWorker() throws InterruptedException {
+        // 每个 id 一次 INCR 和 号段模式 各生成 300 * 100 个 id 两种模式共用同一个计数器 合起来也不能重复
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Queue<Long> duplicates = new ConcurrentLinkedQueue<>();
+        generateIds(() -> {
+            long id = redisIdWorker.nextIdFromRedis("order");
+            if (!ids.add(id)) {
+                duplicates.add(id);
+            }
+        });
+        generateIds(() -> {
+            long id = redisIdWorker.nextIdFromSegment("order");
+            if (!ids.add(id)) {
+                duplicates.add(id);
+            }
+        });
+        assertTrue(duplicates.isEmpty(), "重复的 id: " + duplicates);
+        assertEquals(2 * 300 * 100, ids.size());
+    }
+
+    // 工作线程中的异常收集起来 在测试线程上断言 任务失败也会 countDown 不会卡住测试
+    private void generateIds(Runnable nextId) throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(300);
+        Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
 
         Runnable task = () -> {
-            for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id = " + id);
+            try {
+                for (int i = 0; i < 100; i++) {
+                    nextId.run();
+                }
+            } catch (Throwable e) {
+                failures.add(e);
+            } finally {
+                latch.countDown();
             }
-            latch.countDown();
         };
-        long begin = System.currentTimeMillis();
         for (int i = 0; i < 300; i++) {
             es.submit(task);
         }
-        latch.await();
-        long end = System.currentTimeMillis();
-        System.out.println("time = " + (end - begin));
+        assertTrue(latch.await(60, TimeUnit.SECONDS), "生成 id 超时");
+        if (!failures.isEmpty()) {
+            fail("生成 id 失败", failures.peek());
+        }
     }
 
     @Test
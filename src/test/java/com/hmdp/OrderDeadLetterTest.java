@@ -0,0 +1,64 @@
+package com.hmdp;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderQueue;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+// 使用进程内的订单队列 不需要 RabbitMQ
+@SpringBootTest(properties = "seckill.order.queue=local")
+public class OrderDeadLetterTest {
+
+    @Resource
+    private OrderQueue orderQueue;
+
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testRejectedOrderGoesToDeadLetter() throws InterruptedException {
+        // 不存在的券 扣减数据库库存失败 订单被拒绝
+        Long voucherId = -1L;
+        Long userId = 1L;
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_KEY + voucherId, userId.toString());
+        Long before = stringRedisTemplate.opsForList().size(SECKILL_ORDER_DLQ_KEY);
+
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(redisIdWorker.nextId("order"));
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        orderQueue.send(voucherOrder);
+
+        try {
+            // 等订单进入死信 最多等 5 秒
+            long deadline = System.currentTimeMillis() + 5000;
+            Long after = stringRedisTemplate.opsForList().size(SECKILL_ORDER_DLQ_KEY);
+            while (after <= before && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+                after = stringRedisTemplate.opsForList().size(SECKILL_ORDER_DLQ_KEY);
+            }
+            // 进入死信 移除了已购用户 数据库拒绝的库存不还回 Redis
+            assertEquals(before + 1, after);
+            assertNull(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId));
+            assertFalse(stringRedisTemplate.opsForSet().isMember(SECKILL_ORDER_KEY + voucherId, userId.toString()));
+        } finally {
+            stringRedisTemplate.opsForList().rightPop(SECKILL_ORDER_DLQ_KEY);
+            stringRedisTemplate.delete(SECKILL_STOCK_KEY + voucherId);
+            stringRedisTemplate.delete(SECKILL_ORDER_KEY + voucherId);
+        }
+    }
+}